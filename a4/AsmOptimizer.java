@@ -0,0 +1,285 @@
+// Optimizing back end of RiscVAssembler: peephole passes over the parsed instruction list, then
+// address assignment with branch relaxation. Passes repeat until nothing changes:
+//   - addi folding: "addi rd, rs, a; addi rd, rd, b" becomes "addi rd, rs, a+b", and ALU
+//     instructions that cannot change a register (addi rd, rd, 0 or any write to x0) are dropped
+//   - jump threading: a branch or jump to a label whose first instruction is "jal x0, other"
+//     goes straight to other
+//   - dead code: instructions after an unconditional jump, up to the next label, are dropped
+//   - jumps to the next instruction are dropped
+// Code with numeric branch offsets (other than the "jal x0, 0" exit) is left as written, since
+// moving anything would break them; a numeric offset out of range is an error, as without the
+// optimizer. Branches whose label is out of the 13-bit range are relaxed into an inverted branch
+// around a jal (blt has no inverse here, so it takes an extra jal).
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class AsmOptimizer {
+    static final int LABEL = -1; // Op of a label marker
+
+    private static final int MAX_ROUNDS = 16; // Pass repetitions
+    private static final int MAX_HOPS = 8;    // Jumps followed when threading
+
+    private static final int BEQ = RiscVAssembler.BEQ, BLT = RiscVAssembler.BLT, BNE = RiscVAssembler.BNE;
+    private static final int JAL = RiscVAssembler.JAL, ADDI = RiscVAssembler.ADDI;
+
+    // One parsed instruction, or a label marker (op LABEL, target = label name)
+    static final class Instruction {
+        int op, rd, rs1, rs2, imm;
+        String target;  // Label of a branch or jump (null for a numeric offset in imm)
+        final int line; // Source line
+        String source;  // Source text (null with symbols off)
+        int address;    // Byte offset in .text, set by layOut
+        boolean relaxed;
+
+        Instruction(int op, int rd, int rs1, int rs2, int imm, String target, int line, String source) {
+            this.op = op;
+            this.rd = rd;
+            this.rs1 = rs1;
+            this.rs2 = rs2;
+            this.imm = imm;
+            this.target = target;
+            this.line = line;
+            this.source = source;
+        }
+
+        static Instruction label(String name, int line) {
+            return new Instruction(LABEL, 0, 0, 0, 0, name, line, null);
+        }
+
+        boolean isLabel() {
+            return op == LABEL;
+        }
+
+        boolean isBranch() {
+            return op == BEQ || op == BLT || op == BNE;
+        }
+
+        boolean isUnconditionalJump() {
+            return op == JAL && rd == 0;
+        }
+
+        boolean isExit() {
+            return isUnconditionalJump() && target == null && imm == 0;
+        }
+
+        // Bytes of .text taken once lowered
+        int size() {
+            if (isLabel()) return 0;
+            if (!relaxed) return 4;
+            return op == BLT ? 12 : 8;
+        }
+
+        // Assembly text, for the source of rewritten instructions
+        String describe() {
+            String name = RiscVAssembler.MNEMONICS[op];
+            String to = target != null ? target : Integer.toString(imm);
+            switch (op) {
+                case RiscVAssembler.LW: return name + " x" + rd + ", " + imm + "(x" + rs1 + ")";
+                case RiscVAssembler.SW: return name + " x" + rs2 + ", " + imm + "(x" + rs1 + ")";
+                case ADDI: return name + " x" + rd + ", x" + rs1 + ", " + imm;
+                case JAL: return name + " x" + rd + ", " + to;
+                case RiscVAssembler.ECALL: return name;
+                default: return isBranch() ? name + " x" + rs1 + ", x" + rs2 + ", " + to
+                                           : name + " x" + rd + ", x" + rs1 + ", x" + rs2;
+            }
+        }
+
+        // Record a rewrite in the source text kept for the .sym file
+        void rewritten() {
+            if (source != null) source = describe() + "  # was: " + source;
+        }
+    }
+
+    // Run the peephole passes over program in place
+    static void optimize(List<Instruction> program) {
+        for (Instruction insn : program) {
+            if ((insn.isBranch() || insn.op == JAL) && insn.target == null && !insn.isExit()) return;
+        }
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            boolean changed = foldAddi(program);
+            changed |= threadJumps(program);
+            changed |= removeUnreachable(program);
+            changed |= removeJumpsToNext(program);
+            if (!changed) break;
+        }
+    }
+
+    private static boolean foldAddi(List<Instruction> program) {
+        List<Instruction> out = new ArrayList<>(program.size());
+        for (Instruction insn : program) {
+            if (isNop(insn)) continue;
+            Instruction prev = out.isEmpty() ? null : out.get(out.size() - 1);
+            if (prev != null && prev.op == ADDI && insn.op == ADDI && insn.rd == prev.rd && insn.rs1 == prev.rd) {
+                int sum = prev.imm + insn.imm;
+                if (RiscVAssembler.immediateFits(sum)) {
+                    prev.imm = sum;
+                    prev.rewritten();
+                    if (isNop(prev)) out.remove(out.size() - 1);
+                    continue;
+                }
+            }
+            out.add(insn);
+        }
+        return replace(program, out);
+    }
+
+    // ALU instruction with no effect: writes x0, or adds 0 to its own register
+    private static boolean isNop(Instruction insn) {
+        switch (insn.op) {
+            case ADDI: return insn.rd == 0 || (insn.rd == insn.rs1 && insn.imm == 0);
+            case RiscVAssembler.ADD:
+            case RiscVAssembler.SUB: return insn.rd == 0;
+            default: return false;
+        }
+    }
+
+    private static boolean threadJumps(List<Instruction> program) {
+        // Label -> first instruction after it
+        Map<String, Instruction> first = new HashMap<>();
+        List<String> pending = new ArrayList<>();
+        for (Instruction insn : program) {
+            if (insn.isLabel()) {
+                pending.add(insn.target);
+            } else {
+                for (String label : pending) first.put(label, insn);
+                pending.clear();
+            }
+        }
+        boolean changed = false;
+        for (Instruction insn : program) {
+            if (insn.isLabel() || insn.target == null) continue;
+            String target = insn.target;
+            for (int hop = 0; hop < MAX_HOPS; hop++) {
+                Instruction next = first.get(target);
+                if (next == null || !next.isUnconditionalJump() || next.target == null || next.target.equals(target)) break;
+                target = next.target;
+            }
+            if (!target.equals(insn.target)) {
+                insn.target = target;
+                insn.rewritten();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean removeUnreachable(List<Instruction> program) {
+        List<Instruction> out = new ArrayList<>(program.size());
+        boolean reachable = true;
+        for (Instruction insn : program) {
+            if (insn.isLabel()) reachable = true;
+            if (reachable) out.add(insn);
+            if (insn.isUnconditionalJump()) reachable = false;
+        }
+        return replace(program, out);
+    }
+
+    private static boolean removeJumpsToNext(List<Instruction> program) {
+        List<Instruction> out = new ArrayList<>(program.size());
+        for (int i = 0; i < program.size(); i++) {
+            Instruction insn = program.get(i);
+            if ((insn.isBranch() || insn.isUnconditionalJump()) && insn.target != null && labelFollows(program, i, insn.target)) {
+                continue;
+            }
+            out.add(insn);
+        }
+        return replace(program, out);
+    }
+
+    // Whether label is among the label markers directly after index i
+    private static boolean labelFollows(List<Instruction> program, int i, String label) {
+        for (int j = i + 1; j < program.size() && program.get(j).isLabel(); j++) {
+            if (program.get(j).target.equals(label)) return true;
+        }
+        return false;
+    }
+
+    private static boolean replace(List<Instruction> program, List<Instruction> out) {
+        if (out.size() == program.size()) return false;
+        program.clear();
+        program.addAll(out);
+        return true;
+    }
+
+    // Assign addresses, relaxing branches until every offset fits, and store the final label
+    // offsets in labels. Returns the instructions to encode, with offsets in imm.
+    static List<Instruction> layOut(List<Instruction> program, Map<String, Integer> labels) {
+        boolean numericOffsets = false;
+        for (Instruction insn : program) {
+            if ((insn.isBranch() || insn.op == JAL) && insn.target == null && !insn.isExit()) numericOffsets = true;
+        }
+
+        boolean changed = true;
+        while (changed) {
+            int address = 0;
+            for (Instruction insn : program) {
+                insn.address = address;
+                if (insn.isLabel()) labels.put(insn.target, address);
+                address += insn.size();
+            }
+            changed = false;
+            for (Instruction insn : program) {
+                if (insn.isLabel() || insn.target == null || insn.relaxed) continue;
+                int offset = offsetTo(insn, labels, insn.address);
+                if (RiscVAssembler.offsetFits(insn.op, offset)) continue;
+                if (insn.op == JAL || numericOffsets) {
+                    throw outOfRange(insn, offset, insn.op == JAL ? "Jump" : "Branch",
+                            insn.op == JAL ? "" : "; numeric branch offsets prevent relaxing it");
+                }
+                insn.relaxed = true;
+                changed = true;
+            }
+        }
+
+        List<Instruction> lowered = new ArrayList<>(program.size());
+        for (Instruction insn : program) {
+            if (insn.isLabel()) continue;
+            if (!insn.relaxed) {
+                if (insn.target != null) {
+                    insn.imm = offsetTo(insn, labels, insn.address);
+                } else {
+                    RiscVAssembler.checkOffset(insn.op, insn.imm, null, insn.line); // Numeric offsets are kept as written
+                }
+                lowered.add(insn);
+                continue;
+            }
+            // The far jal sits in the last slot of the relaxed sequence
+            int farAddress = insn.address + insn.size() - 4;
+            int offset = offsetTo(insn, labels, farAddress);
+            if (!RiscVAssembler.offsetFits(JAL, offset)) throw outOfRange(insn, offset, "Branch", "");
+            String source = insn.source == null ? null : "  # relaxed: " + insn.source;
+            if (insn.op == BLT) {
+                // blt taken skips the jal over the far jump
+                lowered.add(piece(BLT, 0, insn.rs1, insn.rs2, 4, insn, source));
+                lowered.add(piece(JAL, 0, 0, 0, 4, insn, source));
+            } else {
+                lowered.add(piece(insn.op == BEQ ? BNE : BEQ, 0, insn.rs1, insn.rs2, 4, insn, source));
+            }
+            lowered.add(piece(JAL, 0, 0, 0, offset, insn, source));
+        }
+        return lowered;
+    }
+
+    // Offset in bytes from the instruction after address to insn's label
+    private static int offsetTo(Instruction insn, Map<String, Integer> labels, int address) {
+        Integer target = labels.get(insn.target);
+        if (target == null) {
+            throw new IllegalArgumentException("line " + insn.line + ": Undefined label: " + insn.target);
+        }
+        return target - address - 4;
+    }
+
+    private static Instruction piece(int op, int rd, int rs1, int rs2, int imm, Instruction from, String source) {
+        Instruction insn = new Instruction(op, rd, rs1, rs2, imm, null, from.line, null);
+        if (source != null) insn.source = insn.describe() + source;
+        return insn;
+    }
+
+    private static IllegalArgumentException outOfRange(Instruction insn, int offset, String kind, String hint) {
+        return new IllegalArgumentException("line " + insn.line + ": " + kind + " target " + insn.target +
+                " out of range (offset " + offset + ")" + hint);
+    }
+}
@@ -0,0 +1,246 @@
+// Runs many guest programs in parallel (grading runs, fuzz corpora) and streams one result line per
+// program to a file. Programs are spread over a work-stealing ForkJoinPool, one worker per core by
+// default. Guest memories are pooled: each run takes a memory from the pool and resets it afterwards,
+// so page buffers are reused instead of reallocated. Every run is bounded by an instruction limit
+// and a wall-clock timeout.
+//
+//   java BatchRunner [-threads N] [-limit N] [-timeout ms] [-jit N] [-out results.tsv] <dir or .elf>...
+//
+// Result lines are tab-separated: path, stop reason, instructions, final PC, milliseconds,
+// SHA-256 of guest memory, exit code, bytes of output, SHA-256 of output, x1..x31 in hex, then the
+// stop message (fault or invalid instruction; empty otherwise). A file the loader rejects gets
+// BAD_IMAGE and a run that fails inside the interpreter INTERNAL_ERROR, with every other column
+// empty except the message. Guest output (write system calls) is hashed as it is written, not
+// kept; guest input is empty.
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class BatchRunner {
+    // Columns between the stop reason and the message: instructions, PC, milliseconds, memory SHA,
+    // exit code, output bytes, output SHA and x1..x31
+    private static final int RESULT_COLUMNS = 7 + 31;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long instructionLimit = 100_000_000;
+    private Duration timeout = Duration.ofSeconds(10);
+    private int jitThreshold = 0;
+
+    private final ConcurrentLinkedQueue<GuestMemory> arenas = new ConcurrentLinkedQueue<>(); // Idle memories
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    // Per-program limits (0 / null = none; without them a program that never exits runs forever)
+    public void setInstructionLimit(long limit) {
+        instructionLimit = limit;
+    }
+
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setJitThreshold(int threshold) {
+        jitThreshold = threshold;
+    }
+
+    // Totals for one batch
+    public static final class Summary {
+        int programs;
+        long instructions;
+        long elapsedNanos;
+        final Map<String, Integer> outcomes = new TreeMap<>(); // Stop reason -> programs
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            return String.format("%d programs, %d instructions in %.3f s (%.0f programs/s, %.0f instr/s) %s",
+                    programs, instructions, seconds, programs / seconds, instructions / seconds, outcomes);
+        }
+    }
+
+    // Run every program and write its result line to resultsFile as soon as it finishes
+    public Summary run(List<Path> programs, Path resultsFile) throws IOException {
+        Summary summary = new Summary();
+        long start = System.nanoTime();
+        try (Writer out = Files.newBufferedWriter(resultsFile)) {
+            Parallel.forEach(programs.size(), threads, i -> runOne(programs.get(i), out, summary));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        summary.elapsedNanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    private void runOne(Path program, Writer out, Summary summary) {
+        long start = System.nanoTime();
+        StringBuilder line = new StringBuilder(320).append(program).append('\t');
+        String outcome;
+        long instructions = 0;
+        ProgramImage image = null;
+        try {
+            image = ProgramImage.map(program.toString());
+            outcome = null;
+        } catch (IOException e) {
+            outcome = "BAD_IMAGE";
+            failed(line, outcome, e.getMessage());
+        }
+        if (image != null) {
+            GuestMemory memory = arenas.poll();
+            if (memory == null) memory = new GuestMemory();
+            int mark = line.length();
+            try {
+                RiscVInterpreter rv = new RiscVInterpreter(memory);
+                rv.setVerbose(false);
+                rv.setInstructionLimit(instructionLimit);
+                rv.setTimeout(timeout);
+                rv.setJitThreshold(jitThreshold);
+                DigestChannel output = new DigestChannel();
+                rv.setHostIO(new HostIO(Channels.newChannel(InputStream.nullInputStream()), output, output));
+                rv.load(image);
+                rv.run();
+                outcome = rv.stopReason().name();
+                instructions = rv.instructionCount();
+
+                MessageDigest md = sha256();
+                memory.digest(md);
+                line.append(outcome).append('\t').append(instructions)
+                    .append("\t0x").append(Integer.toHexString(rv.pc()))
+                    .append('\t').append((System.nanoTime() - start) / 1_000_000)
+                    .append('\t').append(HexFormat.of().formatHex(md.digest()))
+                    .append('\t').append(rv.exitCode())
+                    .append('\t').append(output.bytes)
+                    .append('\t').append(HexFormat.of().formatHex(output.md.digest()));
+                for (int i = 1; i < 32; i++) {
+                    line.append('\t').append(Integer.toHexString(rv.register(i)));
+                }
+                line.append('\t').append(column(rv.stopMessage()));
+            } catch (RuntimeException e) {
+                // A bug in the interpreter, not in the program: keep the batch going and say so
+                line.setLength(mark);
+                instructions = 0;
+                outcome = "INTERNAL_ERROR";
+                failed(line, outcome, e.toString());
+            } finally {
+                memory.reset();
+                arenas.offer(memory);
+            }
+        }
+        line.append('\n');
+
+        synchronized (summary) {
+            try {
+                out.write(line.toString());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            summary.programs++;
+            summary.instructions += instructions;
+            summary.outcomes.merge(outcome, 1, Integer::sum);
+        }
+    }
+
+    // Columns after the path of a program that produced no results: the outcome, empty result
+    // columns and the message in the last column
+    private static void failed(StringBuilder line, String outcome, String message) {
+        line.append(outcome);
+        for (int i = 0; i < RESULT_COLUMNS; i++) line.append('\t');
+        line.append('\t').append(column(message));
+    }
+
+    // Text safe to put in one column
+    private static String column(String text) {
+        return text == null ? "" : text.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    // Sink for guest output that keeps only its length and SHA-256
+    private static final class DigestChannel implements WritableByteChannel {
+        final MessageDigest md = sha256();
+        long bytes;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            md.update(src);
+            bytes += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The .elf files named by paths, searching directories recursively
+    static List<Path> collect(List<String> paths) throws IOException {
+        List<Path> programs = new ArrayList<>();
+        for (String name : paths) {
+            Path path = Paths.get(name);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.walk(path)) {
+                    programs.addAll(files.filter(f -> f.toString().endsWith(".elf") && Files.isRegularFile(f))
+                            .sorted().collect(Collectors.toList()));
+                }
+            } else {
+                programs.add(path);
+            }
+        }
+        return programs;
+    }
+
+    public static void main(String[] args) throws IOException {
+        BatchRunner runner = new BatchRunner();
+        Path results = Paths.get("results.tsv");
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-threads": runner.setThreads(Integer.parseInt(args[++i])); break;
+                case "-limit": runner.setInstructionLimit(Long.parseLong(args[++i])); break;
+                case "-timeout": runner.setTimeout(Duration.ofMillis(Long.parseLong(args[++i]))); break;
+                case "-jit": runner.setJitThreshold(Integer.parseInt(args[++i])); break;
+                case "-out": results = Paths.get(args[++i]); break;
+                default: inputs.add(args[i]);
+            }
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: java BatchRunner [-threads N] [-limit N] [-timeout ms] [-jit N] [-out results.tsv] <dir or .elf>...");
+            System.exit(1);
+        }
+        Summary summary = runner.run(collect(inputs), results);
+        System.out.println(summary);
+        System.out.println("Results written to " + results);
+    }
+}
@@ -0,0 +1,465 @@
+// Translates hot basic blocks of guest code into JVM classes so HotSpot can compile them
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class BlockCompiler {
+    // Longest block (in instructions) compiled into one class
+    static final int MAX_BLOCK_LENGTH = 64;
+
+    // Compiled blocks are shared by every interpreter running the same code at the same address,
+    // so HotSpot optimizes each generated class once instead of once per interpreter
+    private static final int MAX_CACHED_BLOCKS = 1 << 14;
+    private static final Map<BlockKey, Block> CACHE = new ConcurrentHashMap<>();
+
+    // A compiled basic block: runs the guest instructions and returns the next PC.
+    // Guest registers live in JVM locals and are written back to regs only at the block exit. A load
+    // or store that faults writes back the registers set before it and reports its PC through
+    // cpu.leaveBlock before the fault propagates, so state matches the interpreter's.
+    interface Block {
+        int run(int[] regs, RiscVInterpreter cpu);
+    }
+
+    // Compile the block starting at a .text slot, or return null if it starts with
+    // an instruction the interpreter must handle (invalid, ecall, or the jal x0, 0 exit).
+    // Returns the block together with its end slot (exclusive) through blockEnds.
+    static Block compile(RiscVInterpreter cpu, int startSlot, int[] blockEnds) {
+        int slots = cpu.textSlots();
+        int end = startSlot;
+        boolean terminated = false;
+        while (end < slots && end - startSlot < MAX_BLOCK_LENGTH) {
+            int fields = cpu.decodedAt(end);
+            int op = fields & 0xFF;
+            if (op == RiscVInterpreter.OP_INVALID || op == RiscVInterpreter.OP_ECALL) break;
+            if (op == RiscVInterpreter.OP_JAL && ((fields >> 8) & 0x1F) == 0 && cpu.decodedImm[end] == 0) break;
+            end++;
+            if (op == RiscVInterpreter.OP_BEQ || op == RiscVInterpreter.OP_BNE
+                    || op == RiscVInterpreter.OP_BLT || op == RiscVInterpreter.OP_JAL) {
+                terminated = true;
+                break;
+            }
+        }
+        if (end == startSlot) return null;
+        int[] words = new int[end - startSlot];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = cpu.decodedRaw[startSlot + i];
+        }
+        BlockKey key = new BlockKey(startSlot, words);
+        Block block = CACHE.get(key);
+        if (block != null) {
+            blockEnds[startSlot] = end;
+            return block;
+        }
+        try {
+            byte[] classBytes = new BlockCompiler(cpu, startSlot, end, terminated).generate();
+            MethodHandles.Lookup hidden = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+            block = (Block) hidden.lookupClass().getDeclaredConstructor().newInstance();
+            if (CACHE.size() >= MAX_CACHED_BLOCKS) {
+                CACHE.clear();
+            }
+            CACHE.put(key, block);
+            blockEnds[startSlot] = end;
+            return block;
+        } catch (IOException | ReflectiveOperationException e) {
+            // Not expected (the class is written to a byte array and defined in this package), but
+            // if it happens the block runs interpreted and the interpreter counts the failure.
+            // Errors, such as a VerifyError from a code generator bug, propagate.
+            cpu.blockCompileFailed(startSlot, e);
+            return null;
+        }
+    }
+
+    // Identifies a block by where it starts and the instruction words it contains
+    private static final class BlockKey {
+        final int startSlot;
+        final int[] words;
+
+        BlockKey(int startSlot, int[] words) {
+            this.startSlot = startSlot;
+            this.words = words;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BlockKey && ((BlockKey) o).startSlot == startSlot && Arrays.equals(((BlockKey) o).words, words);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * startSlot + Arrays.hashCode(words);
+        }
+    }
+
+    // JVM opcodes used by the generated code
+    private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13;
+    private static final int ILOAD = 0x15, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ALOAD_2 = 0x2c;
+    private static final int IALOAD = 0x2e, ISTORE = 0x36, IASTORE = 0x4f, POP = 0x57, DUP = 0x59;
+    private static final int IADD = 0x60, ISUB = 0x64;
+    private static final int IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2;
+    private static final int IRETURN = 0xac, RETURN = 0xb1, ATHROW = 0xbf;
+    private static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7;
+
+    // Local variable slots: 0 = this, 1 = regs, 2 = cpu, 2 + r = guest register xr, then a store address
+    private static final int FIRST_REG_LOCAL = 2;
+    private static final int ADDRESS_LOCAL = FIRST_REG_LOCAL + 32;
+
+    private final RiscVInterpreter cpu;
+    private final int startSlot, endSlot;
+    private final boolean terminated;
+
+    // Constant pool under construction
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    // Method body under construction
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final boolean[] dirty = new boolean[32];
+
+    // A load or store call and the registers written before it, for its fault handler
+    private static final class FaultSite {
+        final int start, end, pc;
+        final boolean[] dirty;
+
+        FaultSite(int start, int end, int pc, boolean[] dirty) {
+            this.start = start;
+            this.end = end;
+            this.pc = pc;
+            this.dirty = dirty;
+        }
+    }
+
+    private final List<FaultSite> faultSites = new ArrayList<>();
+
+    private BlockCompiler(RiscVInterpreter cpu, int startSlot, int endSlot, boolean terminated) {
+        this.cpu = cpu;
+        this.startSlot = startSlot;
+        this.endSlot = endSlot;
+        this.terminated = terminated;
+    }
+
+    // Build the class file: final class implementing Block with a no-arg constructor and run()
+    private byte[] generate() throws IOException {
+        int thisClass = classRef("RvBlock");
+        int superClass = classRef("java/lang/Object");
+        int blockInterface = classRef("BlockCompiler$Block");
+        int objectInit = methodRef(superClass, "<init>", "()V");
+        int loadWord = methodRef(classRef("RiscVInterpreter"), "loadWord", "(I)I");
+        int storeWord = methodRef(classRef("RiscVInterpreter"), "storeWord", "(II)V");
+        int leaveBlock = methodRef(classRef("RiscVInterpreter"), "leaveBlock", "(I)I");
+        int codeName = utf8("Code");
+
+        // Constructor: super()
+        code.write(ALOAD_0);
+        code.write(INVOKESPECIAL);
+        u2(code, objectInit);
+        code.write(RETURN);
+        byte[] initCode = code.toByteArray();
+        code.reset();
+
+        emitBlock(loadWord, storeWord, leaveBlock);
+        ByteArrayOutputStream exceptionTable = new ByteArrayOutputStream();
+        int fault = classRef("GuestMemory$Fault");
+        for (FaultSite site : faultSites) {
+            u2(exceptionTable, site.start);
+            u2(exceptionTable, site.end);
+            u2(exceptionTable, emitFaultHandler(site, leaveBlock));
+            u2(exceptionTable, fault);
+        }
+        byte[] runCode = code.toByteArray();
+
+        int initName = utf8("<init>"), initDesc = utf8("()V");
+        int runName = utf8("run"), runDesc = utf8("([ILRiscVInterpreter;)I");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);          // Minor version
+        out.writeShort(49);         // Major version 49: no StackMapTable needed for exit branches and fault handlers
+        out.writeShort(poolCount);
+        pool.writeTo(out);
+        out.writeShort(0x0030);     // ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);          // Interfaces
+        out.writeShort(blockInterface);
+        out.writeShort(0);          // Fields
+        out.writeShort(2);          // Methods
+        writeMethod(out, initName, initDesc, codeName, 1, 1, initCode, new byte[0]);
+        writeMethod(out, runName, runDesc, codeName, 4, ADDRESS_LOCAL + 1, runCode, exceptionTable.toByteArray());
+        out.writeShort(0);          // Class attributes
+        return bytes.toByteArray();
+    }
+
+    // Emit run(): load live-in registers, the straight-line body, then flush and return the next PC
+    private void emitBlock(int loadWord, int storeWord, int leaveBlock) {
+        boolean[] written = new boolean[32];
+        boolean[] liveIn = new boolean[32];
+        for (int slot = startSlot; slot < endSlot; slot++) {
+            int fields = cpu.decodedFields[slot];
+            int rd = (fields >> 8) & 0x1F, rs1 = (fields >> 13) & 0x1F, rs2 = (fields >> 18) & 0x1F;
+            if (!written[rs1]) liveIn[rs1] = true;
+            if (!written[rs2]) liveIn[rs2] = true;
+            written[rd] = true;
+        }
+        for (int r = 1; r < 32; r++) {
+            if (liveIn[r]) {
+                code.write(ALOAD_1);
+                pushInt(r);
+                code.write(IALOAD);
+                code.write(ISTORE);
+                code.write(FIRST_REG_LOCAL + r);
+            }
+        }
+
+        for (int slot = startSlot; slot < endSlot; slot++) {
+            int fields = cpu.decodedFields[slot];
+            int op = fields & 0xFF;
+            int rd = (fields >> 8) & 0x1F, rs1 = (fields >> 13) & 0x1F, rs2 = (fields >> 18) & 0x1F;
+            int imm = cpu.decodedImm[slot];
+            int nextPc = RiscVInterpreter.TEXT_BASE + ((slot + 1) << 2);
+            switch (op) {
+                case RiscVInterpreter.OP_ADD:
+                case RiscVInterpreter.OP_SUB:
+                    if (rd == 0) break;
+                    loadReg(rs1);
+                    loadReg(rs2);
+                    code.write(op == RiscVInterpreter.OP_ADD ? IADD : ISUB);
+                    storeReg(rd);
+                    break;
+                case RiscVInterpreter.OP_ADDI:
+                    if (rd == 0) break;
+                    loadReg(rs1);
+                    pushInt(imm);
+                    code.write(IADD);
+                    storeReg(rd);
+                    break;
+                case RiscVInterpreter.OP_LW:
+                    code.write(ALOAD_2);
+                    loadReg(rs1);
+                    pushInt(imm);
+                    code.write(IADD);
+                    emitMemoryCall(loadWord, slot);
+                    if (rd == 0) code.write(POP); else storeReg(rd);
+                    break;
+                case RiscVInterpreter.OP_SW:
+                    boolean codeFollows = slot + 1 < endSlot;
+                    code.write(ALOAD_2);
+                    loadReg(rs1);
+                    pushInt(imm);
+                    code.write(IADD);
+                    if (codeFollows) {
+                        code.write(DUP);
+                        code.write(ISTORE);
+                        code.write(ADDRESS_LOCAL);
+                    }
+                    loadReg(rs2);
+                    emitMemoryCall(storeWord, slot);
+                    if (codeFollows) emitCodeWriteExit(nextPc, RiscVInterpreter.TEXT_BASE + (endSlot << 2), leaveBlock);
+                    break;
+                case RiscVInterpreter.OP_BEQ:
+                case RiscVInterpreter.OP_BNE:
+                case RiscVInterpreter.OP_BLT:
+                    flush();
+                    loadReg(rs1);
+                    loadReg(rs2);
+                    int branchAt = code.size();
+                    code.write(op == RiscVInterpreter.OP_BEQ ? IF_ICMPEQ : op == RiscVInterpreter.OP_BNE ? IF_ICMPNE : IF_ICMPLT);
+                    u2(code, 0); // Patched below
+                    pushInt(nextPc);
+                    code.write(IRETURN);
+                    patchBranch(branchAt, code.size() - branchAt);
+                    pushInt(nextPc + imm);
+                    code.write(IRETURN);
+                    break;
+                case RiscVInterpreter.OP_JAL:
+                    if (rd != 0) {
+                        pushInt(nextPc);
+                        storeReg(rd);
+                    }
+                    flush();
+                    pushInt(nextPc + imm);
+                    code.write(IRETURN);
+                    break;
+                default:
+                    throw new IllegalStateException("Cannot compile opcode ID " + op);
+            }
+        }
+
+        if (!terminated) {
+            // Fell off the end of the block: continue in the interpreter at the next instruction
+            flush();
+            pushInt(RiscVInterpreter.TEXT_BASE + (endSlot << 2));
+            code.write(IRETURN);
+        }
+    }
+
+    // Call loadWord or storeWord, covered by a fault handler for the instruction at slot
+    private void emitMemoryCall(int method, int slot) {
+        int start = code.size();
+        code.write(INVOKEVIRTUAL);
+        u2(code, method);
+        faultSites.add(new FaultSite(start, code.size(), RiscVInterpreter.TEXT_BASE + (slot << 2), dirty.clone()));
+    }
+
+    // Handler for a fault at site (the Fault is on the stack): write back the registers set before
+    // it, tell the interpreter where the block stopped, and rethrow. Returns the handler's offset.
+    private int emitFaultHandler(FaultSite site, int leaveBlock) {
+        int at = code.size();
+        System.arraycopy(site.dirty, 0, dirty, 0, dirty.length);
+        flush();
+        code.write(ALOAD_2);
+        pushInt(site.pc);
+        code.write(INVOKEVIRTUAL);
+        u2(code, leaveBlock);
+        code.write(POP);
+        code.write(ATHROW);
+        return at;
+    }
+
+    // A store into this block's own later instructions leaves the block right after it, so the
+    // interpreter runs the new code as it would without compilation
+    private void emitCodeWriteExit(int nextPc, int endPc, int leaveBlock) {
+        code.write(ILOAD);
+        code.write(ADDRESS_LOCAL);
+        pushInt(nextPc);
+        int belowAt = code.size();
+        code.write(IF_ICMPLT);
+        u2(code, 0); // Patched below
+        code.write(ILOAD);
+        code.write(ADDRESS_LOCAL);
+        pushInt(endPc);
+        int aboveAt = code.size();
+        code.write(IF_ICMPGE);
+        u2(code, 0);
+        flush();
+        code.write(ALOAD_2);
+        pushInt(nextPc);
+        code.write(INVOKEVIRTUAL);
+        u2(code, leaveBlock);
+        code.write(IRETURN);
+        patchBranch(belowAt, code.size() - belowAt);
+        patchBranch(aboveAt, code.size() - aboveAt);
+    }
+
+    private void loadReg(int r) {
+        if (r == 0) {
+            code.write(ICONST_0);
+        } else {
+            code.write(ILOAD);
+            code.write(FIRST_REG_LOCAL + r);
+        }
+    }
+
+    private void storeReg(int r) {
+        code.write(ISTORE);
+        code.write(FIRST_REG_LOCAL + r);
+        dirty[r] = true;
+    }
+
+    // Write every register modified so far back to regs[]
+    private void flush() {
+        for (int r = 1; r < 32; r++) {
+            if (dirty[r]) {
+                code.write(ALOAD_1);
+                pushInt(r);
+                loadReg(r);
+                code.write(IASTORE);
+            }
+        }
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            code.write(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.write(BIPUSH);
+            code.write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.write(SIPUSH);
+            u2(code, value);
+        } else {
+            code.write(LDC_W);
+            u2(code, intConstant(value));
+        }
+    }
+
+    private void patchBranch(int at, int offset) {
+        byte[] body = code.toByteArray();
+        body[at + 1] = (byte) (offset >> 8);
+        body[at + 2] = (byte) offset;
+        code.reset();
+        code.write(body, 0, body.length);
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int desc, int codeName,
+                                    int maxStack, int maxLocals, byte[] body, byte[] exceptionTable) throws IOException {
+        out.writeShort(0x0001);     // ACC_PUBLIC
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);          // Attributes: Code
+        out.writeShort(codeName);
+        out.writeInt(12 + body.length + exceptionTable.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(exceptionTable.length / 8); // Exception table: start, end, handler, type
+        out.write(exceptionTable);
+        out.writeShort(0);          // Code attributes
+    }
+
+    private static void u2(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    // Constant pool helpers; identical entries are shared
+    private int utf8(String s) {
+        return constant("U" + s, () -> { poolOut.writeByte(1); poolOut.writeUTF(s); });
+    }
+
+    private int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constant("C" + internalName, () -> { poolOut.writeByte(7); poolOut.writeShort(name); });
+    }
+
+    private int methodRef(int owner, String name, String desc) {
+        int nameIdx = utf8(name), descIdx = utf8(desc);
+        int nameAndType = constant("N" + name + desc, () -> {
+            poolOut.writeByte(12); poolOut.writeShort(nameIdx); poolOut.writeShort(descIdx);
+        });
+        return constant("M" + owner + "." + name + desc, () -> {
+            poolOut.writeByte(10); poolOut.writeShort(owner); poolOut.writeShort(nameAndType);
+        });
+    }
+
+    private int intConstant(int value) {
+        return constant("I" + value, () -> { poolOut.writeByte(3); poolOut.writeInt(value); });
+    }
+
+    private interface PoolWriter {
+        void write() throws IOException;
+    }
+
+    private int constant(String key, PoolWriter writer) {
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        try {
+            writer.write();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Writing to a byte array never fails
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+}
@@ -0,0 +1,264 @@
+// Cache hierarchy simulator for the RISC-V interpreter: separate L1 instruction and data caches and
+// an optional unified L2, each with its own size, associativity, line size, replacement policy and
+// write policy. Every fetch, load and store is looked up (contents stay in GuestMemory; only tags
+// are modelled), and hits, misses and write-backs are counted per level and per PC. Buffers that
+// read and write system calls copy count as one data access per line, charged to the ecall.
+// Tags, valid bits and replacement state live in primitive arrays, so an access allocates nothing.
+//
+//   java CacheSimulator program.elf [-i size:ways:line:policy] [-d size:ways:line:policy:write] [-l2 ...]
+//
+// policy is lru, fifo or random; write is wb (write-back, write-allocate) or wt (write-through,
+// no write-allocate).
+
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public class CacheSimulator {
+    public enum Replacement { LRU, FIFO, RANDOM }
+
+    public enum WritePolicy {
+        WRITE_BACK,   // Writes stay in the cache (allocating on a miss) until the line is evicted
+        WRITE_THROUGH // Writes go straight to the next level; misses do not allocate
+    }
+
+    // One cache: sets x ways lines of lineSize bytes
+    public static final class Cache {
+        final String name;
+        final int size, ways, lineSize;
+        final Replacement replacement;
+        final WritePolicy writePolicy;
+        Cache next; // Next level (null = memory)
+
+        private final int lineShift, setMask;
+        private final int[] tags;      // Line number (addr >>> lineShift) per way, -1 = invalid
+        private final long[] stamps;   // Last use (LRU) or fill time (FIFO) per way
+        private final boolean[] dirty;
+        private long clock;
+        private int random = 0x2545F491;
+
+        long reads, writes, readMisses, writeMisses, writeBacks;
+
+        public Cache(String name, int size, int ways, int lineSize, Replacement replacement, WritePolicy writePolicy) {
+            if (Integer.bitCount(size) != 1 || Integer.bitCount(ways) != 1 || Integer.bitCount(lineSize) != 1
+                    || lineSize < 4 || size < ways * lineSize) {
+                throw new IllegalArgumentException(name + ": size, ways and line size must be powers of two with " +
+                        "size >= ways * line size and line size >= 4 (" + size + ", " + ways + ", " + lineSize + ")");
+            }
+            this.name = name;
+            this.size = size;
+            this.ways = ways;
+            this.lineSize = lineSize;
+            this.replacement = replacement;
+            this.writePolicy = writePolicy;
+            lineShift = Integer.numberOfTrailingZeros(lineSize);
+            setMask = size / (ways * lineSize) - 1;
+            tags = new int[size / lineSize];
+            stamps = new long[size / lineSize];
+            dirty = new boolean[size / lineSize];
+            reset();
+        }
+
+        void reset() {
+            Arrays.fill(tags, -1);
+            Arrays.fill(stamps, 0);
+            Arrays.fill(dirty, false);
+            clock = 0;
+            reads = writes = readMisses = writeMisses = writeBacks = 0;
+        }
+
+        // Look up addr; returns true on a hit. Misses fetch the line from the next level.
+        boolean access(int addr, boolean write) {
+            int line = addr >>> lineShift;
+            int base = (line & setMask) * ways;
+            clock++;
+            if (write) writes++; else reads++;
+
+            for (int way = base; way < base + ways; way++) {
+                if (tags[way] == line) {
+                    if (replacement == Replacement.LRU) stamps[way] = clock;
+                    if (write) {
+                        if (writePolicy == WritePolicy.WRITE_BACK) dirty[way] = true;
+                        else if (next != null) next.access(addr, true);
+                    }
+                    return true;
+                }
+            }
+
+            if (write) writeMisses++; else readMisses++;
+            if (write && writePolicy == WritePolicy.WRITE_THROUGH) {
+                if (next != null) next.access(addr, true); // No write-allocate
+                return false;
+            }
+            int victim = victim(base);
+            if (dirty[victim]) {
+                writeBacks++;
+                if (next != null) next.access(tags[victim] << lineShift, true);
+            }
+            if (next != null) next.access(addr, false); // Fill the line
+            tags[victim] = line;
+            stamps[victim] = clock;
+            dirty[victim] = write;
+            return false;
+        }
+
+        // Way to fill in the set starting at base: an invalid way if there is one, else by policy
+        private int victim(int base) {
+            for (int way = base; way < base + ways; way++) {
+                if (tags[way] == -1) return way;
+            }
+            if (replacement == Replacement.RANDOM) {
+                random ^= random << 13; // xorshift
+                random ^= random >>> 17;
+                random ^= random << 5;
+                return base + ((random & 0x7FFFFFFF) % ways);
+            }
+            int victim = base; // LRU and FIFO: oldest stamp
+            for (int way = base + 1; way < base + ways; way++) {
+                if (stamps[way] < stamps[victim]) victim = way;
+            }
+            return victim;
+        }
+
+        long accesses() {
+            return reads + writes;
+        }
+
+        long misses() {
+            return readMisses + writeMisses;
+        }
+
+        void report(PrintStream out) {
+            out.printf("  %-3s %6d B %2d-way %3d B lines %-6s %-13s  accesses %10d  misses %9d (%6.2f%%)  write-backs %d%n",
+                    name, size, ways, lineSize, replacement, writePolicy, accesses(), misses(),
+                    accesses() == 0 ? 0 : 100.0 * misses() / accesses(), writeBacks);
+        }
+    }
+
+    private final Cache icache, dcache, l2;
+
+    // Per-PC counter columns: fetches that missed in L1I, and data accesses and misses made by that instruction
+    private static final int FETCH_MISSES = 0, DATA_ACCESSES = 1, DATA_MISSES = 2;
+    private final PcCounters counters = new PcCounters(3);
+
+    // L1 instruction and data caches, optionally backed by a unified L2 (null = none)
+    public CacheSimulator(Cache icache, Cache dcache, Cache l2) {
+        this.icache = icache;
+        this.dcache = dcache;
+        this.l2 = l2;
+        icache.next = l2;
+        dcache.next = l2;
+    }
+
+    // A typical small configuration: 4 KB 2-way L1s with 32-byte lines, 64 KB 8-way L2, LRU, write-back
+    public static CacheSimulator standard() {
+        return new CacheSimulator(
+                new Cache("L1I", 4096, 2, 32, Replacement.LRU, WritePolicy.WRITE_BACK),
+                new Cache("L1D", 4096, 2, 32, Replacement.LRU, WritePolicy.WRITE_BACK),
+                new Cache("L2", 65536, 8, 32, Replacement.LRU, WritePolicy.WRITE_BACK));
+    }
+
+    // Empty every cache and size the per-PC counters for a .text section of textWords instructions
+    void reset(int textWords) {
+        icache.reset();
+        dcache.reset();
+        if (l2 != null) l2.reset();
+        counters.reset(textWords);
+    }
+
+    // Instruction fetch at pc
+    void fetch(int pc) {
+        if (!icache.access(pc, false)) {
+            int slot = counters.slot(pc);
+            if (slot >= 0) counters.add(FETCH_MISSES, slot, 1);
+        }
+    }
+
+    // Load (write = false) or store by the instruction at pc
+    void data(int pc, int addr, boolean write) {
+        boolean hit = dcache.access(addr, write);
+        int slot = counters.slot(pc);
+        if (slot >= 0) {
+            counters.add(DATA_ACCESSES, slot, 1);
+            if (!hit) counters.add(DATA_MISSES, slot, 1);
+        }
+    }
+
+    // length bytes from addr copied by a system call made at pc: one access per L1D line touched,
+    // as the guest's own copy loop would make, all charged to the ecall
+    void dataRange(int pc, int addr, int length, boolean write) {
+        if (length <= 0) return;
+        int line = dcache.lineSize;
+        int first = addr & -line;
+        int lines = (int) (((addr & 0xFFFFFFFFL) + length - 1 - (first & 0xFFFFFFFFL)) / line) + 1;
+        for (int i = 0; i < lines; i++) data(pc, first + i * line, write);
+    }
+
+    public Cache icache() {
+        return icache;
+    }
+
+    public Cache dcache() {
+        return dcache;
+    }
+
+    // Print each level's hit/miss counts and the instructions with the most misses
+    public void report(PrintStream out, GuestProfiler.Symbols symbols, int top) {
+        out.println("Caches:");
+        icache.report(out);
+        dcache.report(out);
+        if (l2 != null) l2.report(out);
+
+        out.println("Misses by instruction:");
+        Integer[] order = counters.hottest(FETCH_MISSES, DATA_MISSES);
+        for (int i = 0; i < Math.min(top, order.length); i++) {
+            int slot = order[i];
+            if (counters.sum(slot, FETCH_MISSES, DATA_MISSES) == 0) break;
+            int pc = PcCounters.pc(slot);
+            out.printf("  0x%04x  fetch misses %8d  data %8d / %8d accesses  %s%n", pc, counters.get(FETCH_MISSES, slot),
+                    counters.get(DATA_MISSES, slot), counters.get(DATA_ACCESSES, slot), symbols.describe(pc));
+        }
+    }
+
+    // Parse "size:ways:line:policy[:write]", e.g. "4096:2:32:lru:wb"
+    static Cache parse(String name, String spec) {
+        String[] parts = spec.split(":");
+        if (parts.length < 4) {
+            throw new IllegalArgumentException(name + ": expected size:ways:line:policy[:write], got " + spec);
+        }
+        Replacement replacement = Replacement.valueOf(parts[3].toUpperCase());
+        if (parts.length > 5 || parts.length == 5 && !parts[4].equalsIgnoreCase("wb") && !parts[4].equalsIgnoreCase("wt")) {
+            throw new IllegalArgumentException(name + ": write policy must be wb or wt, got " + spec);
+        }
+        WritePolicy write = parts.length > 4 && parts[4].equalsIgnoreCase("wt") ? WritePolicy.WRITE_THROUGH : WritePolicy.WRITE_BACK;
+        return new Cache(name, Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), replacement, write);
+    }
+
+    // Run an ELF file with cache simulation and print the report
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java CacheSimulator program.elf [-i size:ways:line:policy] " +
+                    "[-d size:ways:line:policy:write] [-l2 size:ways:line:policy:write | -l2 none]");
+            System.exit(1);
+        }
+        CacheSimulator standard = standard();
+        Cache icache = standard.icache, dcache = standard.dcache, l2 = standard.l2;
+        for (int i = 1; i < args.length; i += 2) {
+            if (!args[i].equals("-i") && !args[i].equals("-d") && !args[i].equals("-l2")) {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+            if (i + 1 == args.length) throw new IllegalArgumentException(args[i] + " needs a value");
+            switch (args[i]) {
+                case "-i": icache = parse("L1I", args[i + 1]); break;
+                case "-d": dcache = parse("L1D", args[i + 1]); break;
+                default: l2 = args[i + 1].equals("none") ? null : parse("L2", args[i + 1]); break;
+            }
+        }
+        RiscVInterpreter rv = new RiscVInterpreter();
+        rv.loadElf(args[0]);
+        CacheSimulator caches = new CacheSimulator(icache, dcache, l2);
+        rv.setCacheSimulator(caches);
+        rv.run();
+        caches.report(System.out, GuestProfiler.Symbols.load(Paths.get(RiscVAssembler.symbolFilePath(args[0]))), 10);
+    }
+}
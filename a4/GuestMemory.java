@@ -0,0 +1,358 @@
+// Guest memory for the RISC-V interpreter: byte-addressable and little-endian.
+// The full 32-bit address space is split into 4 KB pages that are allocated on first write,
+// either on the Java heap or off-heap (direct buffers), each with its own permissions.
+// Pages can also be shared read-only with other memories and are copied on their first write.
+// reset() empties the memory but keeps its page buffers, so one memory can be reused across runs,
+// and fork() copies only the page tables, sharing every page copy-on-write.
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+public class GuestMemory {
+    // Page geometry: 20-bit page number split into a 10-bit directory index and a 10-bit table index
+    static final int PAGE_SHIFT = 12;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // Page permission bits
+    public static final int PERM_READ = 1;
+    public static final int PERM_WRITE = 2;
+    public static final int PERM_EXEC = 4;
+    private static final int PERM_DEFAULT = PERM_READ | PERM_WRITE;
+
+    // Views that read and write multi-byte values straight out of a page (no allocation per access)
+    private static final VarHandle WORD = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle HALF = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final ByteBuffer ZERO_PAGE = ByteBuffer.allocate(PAGE_SIZE).asReadOnlyBuffer();
+
+    // Notified when a store lands on an executable page (e.g. to drop cached decodes)
+    interface CodeWriteListener {
+        void codeWritten(int addr, int size);
+    }
+
+    // Receives each allocated page: its number (address >>> PAGE_SHIFT), permissions and read-only contents
+    interface PageVisitor {
+        void visit(int pageNumber, int perms, ByteBuffer data);
+    }
+
+    private final Page[][] directory = new Page[1 << 10][];
+    private final boolean offHeap;
+    private int pageCount;
+    private CodeWriteListener codeWriteListener;
+
+    // Private page buffers released by reset() or replaced by shared pages, reused before allocating
+    private ByteBuffer[] freePages = new ByteBuffer[16];
+    private int freeCount;
+
+    // Heap-backed memory
+    public GuestMemory() {
+        this(false);
+    }
+
+    // Memory whose pages are allocated off-heap when offHeap is true
+    public GuestMemory(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    void setCodeWriteListener(CodeWriteListener listener) {
+        codeWriteListener = listener;
+    }
+
+    // Number of pages allocated so far (memory footprint is pageCount() * PAGE_SIZE)
+    public int pageCount() {
+        return pageCount;
+    }
+
+    // Unmap every page and forget the code-write listener; private page buffers are kept for reuse
+    public void reset() {
+        for (Page[] table : directory) {
+            if (table == null) continue;
+            for (int i = 0; i < table.length; i++) {
+                if (table[i] != null && !table[i].shared) release(table[i].data);
+            }
+            Arrays.fill(table, null);
+        }
+        pageCount = 0;
+        codeWriteListener = null;
+    }
+
+    // A memory with the same contents and permissions that shares every page with this one; each side
+    // copies a page the first time it writes to it. Costs one Page object per allocated page.
+    public GuestMemory fork() {
+        GuestMemory copy = new GuestMemory(offHeap);
+        copy.shareAll(this);
+        return copy;
+    }
+
+    // Replace the contents of this memory with those of source, sharing its pages copy-on-write
+    public void restore(GuestMemory source) {
+        CodeWriteListener listener = codeWriteListener;
+        reset();
+        codeWriteListener = listener;
+        shareAll(source);
+    }
+
+    private void shareAll(GuestMemory source) {
+        for (int d = 0; d < directory.length; d++) {
+            Page[] from = source.directory[d];
+            if (from == null) continue;
+            for (int i = 0; i < from.length; i++) {
+                if (from[i] == null) continue;
+                from[i].shared = true;
+                Page page = tableForWrite(d << 22)[i] = new Page(from[i].data, from[i].perms);
+                page.shared = true;
+                pageCount++;
+            }
+        }
+    }
+
+    // Visit every allocated page in address order
+    void forEachPage(PageVisitor visitor) {
+        for (int d = 0; d < directory.length; d++) {
+            Page[] table = directory[d];
+            if (table == null) continue;
+            for (int i = 0; i < table.length; i++) {
+                if (table[i] == null) continue;
+                ByteBuffer data = table[i].data.asReadOnlyBuffer();
+                data.clear();
+                visitor.visit(d << 10 | i, table[i].perms, data);
+            }
+        }
+    }
+
+    static boolean isZero(ByteBuffer page) {
+        return page.equals(ZERO_PAGE);
+    }
+
+    // Feed the contents of every page that is not all zeros into md, with its page number, in address
+    // order. Memories that read the same everywhere give the same digest however their pages were made.
+    public void digest(MessageDigest md) {
+        forEachPage((number, perms, data) -> {
+            if (isZero(data)) return;
+            md.update(new byte[] {(byte) number, (byte) (number >> 8), (byte) (number >> 16)});
+            md.update(data);
+        });
+    }
+
+    // Set the permissions of every page overlapping [addr, addr + length), allocating them if needed
+    public void protect(int addr, int length, int perms) {
+        if (length <= 0) return;
+        int first = addr >>> PAGE_SHIFT, last = (addr + length - 1) >>> PAGE_SHIFT;
+        for (int number = first; number <= last; number++) {
+            pageForWrite(number << PAGE_SHIFT, false).perms = perms;
+        }
+    }
+
+    // Fetch a 32-bit instruction word (address must be 4-byte aligned and on an executable page)
+    public int fetchWord(int addr) {
+        checkAlignment(addr, 4);
+        Page page = page(addr);
+        if (page == null || (page.perms & PERM_EXEC) == 0) {
+            throw new Fault("Instruction fetch from non-executable page", addr);
+        }
+        return (int) WORD.get(page.data, addr & PAGE_MASK);
+    }
+
+    // Load a 32-bit word (address must be 4-byte aligned)
+    public int loadWord(int addr) {
+        checkAlignment(addr, 4);
+        Page page = pageForRead(addr);
+        return page == null ? 0 : (int) WORD.get(page.data, addr & PAGE_MASK);
+    }
+
+    // Store a 32-bit word (address must be 4-byte aligned)
+    public void storeWord(int addr, int value) {
+        checkAlignment(addr, 4);
+        Page page = pageForWrite(addr, true);
+        WORD.set(page.data, addr & PAGE_MASK, value);
+        codeWritten(page, addr, 4);
+    }
+
+    // Load a sign-extended 16-bit half-word (address must be 2-byte aligned)
+    public int loadHalf(int addr) {
+        checkAlignment(addr, 2);
+        Page page = pageForRead(addr);
+        return page == null ? 0 : (short) HALF.get(page.data, addr & PAGE_MASK);
+    }
+
+    // Store the low 16 bits of value (address must be 2-byte aligned)
+    public void storeHalf(int addr, int value) {
+        checkAlignment(addr, 2);
+        Page page = pageForWrite(addr, true);
+        HALF.set(page.data, addr & PAGE_MASK, (short) value);
+        codeWritten(page, addr, 2);
+    }
+
+    // Load a sign-extended byte
+    public int loadByte(int addr) {
+        Page page = pageForRead(addr);
+        return page == null ? 0 : page.data.get(addr & PAGE_MASK);
+    }
+
+    // Store the low 8 bits of value
+    public void storeByte(int addr, int value) {
+        Page page = pageForWrite(addr, true);
+        page.data.put(addr & PAGE_MASK, (byte) value);
+        codeWritten(page, addr, 1);
+    }
+
+    // Copy dst.remaining() bytes starting at addr into dst, as a run of byte loads would
+    // (unallocated pages read as zero). Used for system call buffers.
+    public void read(int addr, ByteBuffer dst) {
+        while (dst.hasRemaining()) {
+            int chunk = Math.min(dst.remaining(), PAGE_SIZE - (addr & PAGE_MASK));
+            Page page = pageForRead(addr);
+            dst.put(dst.position(), page == null ? ZERO_PAGE : page.data, page == null ? 0 : addr & PAGE_MASK, chunk);
+            dst.position(dst.position() + chunk);
+            addr += chunk;
+        }
+    }
+
+    // Copy src.remaining() bytes from src to addr, as a run of byte stores would
+    public void write(int addr, ByteBuffer src) {
+        while (src.hasRemaining()) {
+            int chunk = Math.min(src.remaining(), PAGE_SIZE - (addr & PAGE_MASK));
+            Page page = pageForWrite(addr, true);
+            page.data.put(addr & PAGE_MASK, src, src.position(), chunk);
+            src.position(src.position() + chunk);
+            codeWritten(page, addr, chunk);
+            addr += chunk;
+        }
+    }
+
+    // Install a shared, read-only page at a page-aligned address, replacing whatever was there.
+    // The contents are copied into a private page the first time this memory writes to it.
+    void mapShared(int addr, ByteBuffer data) {
+        Page[] table = tableForWrite(addr);
+        int index = (addr >>> PAGE_SHIFT) & 0x3FF;
+        Page page = table[index];
+        if (page == null) {
+            page = table[index] = new Page(data, PERM_DEFAULT);
+            pageCount++;
+        } else {
+            if (!page.shared) release(page.data);
+            page.data = data;
+        }
+        page.shared = true;
+    }
+
+    // Same, with the given permissions; null data maps a page of zeros
+    void mapShared(int addr, ByteBuffer data, int perms) {
+        mapShared(addr, data == null ? ZERO_PAGE : data);
+        page(addr).perms = perms;
+    }
+
+    // Copy a block of bytes into memory (used when loading program sections); ignores permissions
+    public void storeBytes(int addr, byte[] src, int offset, int length) {
+        while (length > 0) {
+            int chunk = Math.min(length, PAGE_SIZE - (addr & PAGE_MASK));
+            pageForWrite(addr, false).data.put(addr & PAGE_MASK, src, offset, chunk);
+            addr += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    // Page holding addr, or null if it was never allocated
+    private Page page(int addr) {
+        Page[] table = directory[addr >>> 22];
+        return table == null ? null : table[(addr >>> PAGE_SHIFT) & 0x3FF];
+    }
+
+    // Page for a load; unallocated pages read as zero (null)
+    private Page pageForRead(int addr) {
+        Page page = page(addr);
+        if (page != null && (page.perms & PERM_READ) == 0) {
+            throw new Fault("Read from non-readable page", addr);
+        }
+        return page;
+    }
+
+    // Page for a store, allocated on first touch; checkPerms is false for loader writes
+    private Page pageForWrite(int addr, boolean checkPerms) {
+        Page[] table = tableForWrite(addr);
+        int index = (addr >>> PAGE_SHIFT) & 0x3FF;
+        Page page = table[index];
+        if (page == null) {
+            page = table[index] = new Page(newPageData(), PERM_DEFAULT);
+            pageCount++;
+        }
+        if (checkPerms && (page.perms & PERM_WRITE) == 0) {
+            throw new Fault("Write to read-only page", addr);
+        }
+        if (page.shared) { // Copy on write
+            ByteBuffer copy = newPageData();
+            copy.put(0, page.data, 0, PAGE_SIZE);
+            page.data = copy;
+            page.shared = false;
+        }
+        return page;
+    }
+
+    private Page[] tableForWrite(int addr) {
+        Page[] table = directory[addr >>> 22];
+        if (table == null) {
+            table = directory[addr >>> 22] = new Page[1 << 10];
+        }
+        return table;
+    }
+
+    // A zero-filled page buffer, recycled if one is free
+    private ByteBuffer newPageData() {
+        if (freeCount > 0) {
+            ByteBuffer data = freePages[--freeCount];
+            freePages[freeCount] = null;
+            data.put(0, ZERO_PAGE, 0, PAGE_SIZE);
+            return data;
+        }
+        return offHeap ? ByteBuffer.allocateDirect(PAGE_SIZE) : ByteBuffer.allocate(PAGE_SIZE);
+    }
+
+    private void release(ByteBuffer data) {
+        if (freeCount == freePages.length) {
+            freePages = Arrays.copyOf(freePages, freeCount * 2);
+        }
+        freePages[freeCount++] = data;
+    }
+
+    // Report stores to executable pages so cached translations of that code can be dropped
+    private void codeWritten(Page page, int addr, int size) {
+        if ((page.perms & PERM_EXEC) != 0 && codeWriteListener != null) {
+            codeWriteListener.codeWritten(addr, size);
+        }
+    }
+
+    private static void checkAlignment(int addr, int size) {
+        if ((addr & (size - 1)) != 0) {
+            throw new Fault("Misaligned " + size + "-byte access", addr);
+        }
+    }
+
+    // One 4 KB page and its permissions; shared pages belong to other memories too and are read-only
+    static final class Page {
+        ByteBuffer data;
+        int perms;
+        boolean shared;
+
+        Page(ByteBuffer data, int perms) {
+            this.data = data;
+            this.perms = perms;
+        }
+    }
+
+    // A guest memory access that cannot be performed
+    public static class Fault extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final int address;
+
+        Fault(String message, int address) {
+            super(message + " at 0x" + Integer.toHexString(address));
+            this.address = address;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+// Guest-level profiler for the RISC-V interpreter: execution counts per PC, instruction mix,
+// branch outcomes and hot loops, reported against the assembler's symbol sidecar (.sym) and
+// published as JFR events so they can be viewed next to JVM profiles.
+//
+//   java GuestProfiler program.elf [program.sym]
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+public class GuestProfiler {
+    private static final int TEXT_BASE = RiscVInterpreter.TEXT_BASE;
+
+    // Per-PC counter columns
+    private static final int HITS = 0, TAKEN = 1, NOT_TAKEN = 2, TARGET = 3; // TARGET: where a taken branch or jump went
+    private final PcCounters counters = new PcCounters(4);
+    private final long[] opCounts = new long[RiscVInterpreter.opCount()];
+    private long outsideText; // Instructions executed outside .text
+    private long total;
+
+    // Size the per-PC counters for a .text section of the given number of instructions and clear them
+    void reset(int textWords) {
+        counters.reset(textWords);
+        Arrays.fill(opCounts, 0);
+        outsideText = 0;
+        total = 0;
+    }
+
+    // Count one executed instruction; nextPc tells whether a branch was taken
+    void record(int pc, int op, int nextPc) {
+        total++;
+        opCounts[op]++;
+        int slot = counters.slot(pc);
+        if (slot < 0) {
+            outsideText++;
+            return;
+        }
+        counters.add(HITS, slot, 1);
+        if (RiscVInterpreter.endsBlock(op)) {
+            if (nextPc != pc + 4) {
+                counters.add(TAKEN, slot, 1);
+                counters.set(TARGET, slot, nextPc);
+            } else {
+                counters.add(NOT_TAKEN, slot, 1);
+            }
+        }
+    }
+
+    public long total() {
+        return total;
+    }
+
+    // Execution count of the instruction at pc
+    public long hits(int pc) {
+        int slot = counters.slot(pc);
+        return slot < 0 ? 0 : counters.get(HITS, slot);
+    }
+
+    // Instruction class of an opcode ID, for the mix summary
+    static String instructionClass(int op) {
+        switch (op) {
+            case RiscVInterpreter.OP_ADD:
+            case RiscVInterpreter.OP_SUB:
+            case RiscVInterpreter.OP_ADDI:
+                return "alu";
+            case RiscVInterpreter.OP_LW:
+                return "load";
+            case RiscVInterpreter.OP_SW:
+                return "store";
+            case RiscVInterpreter.OP_JAL:
+                return "jump";
+            case RiscVInterpreter.OP_ECALL:
+                return "system";
+            default:
+                return RiscVInterpreter.endsBlock(op) ? "branch" : "other";
+        }
+    }
+
+    // A loop closed by a taken backward branch or jump at tail, jumping back to head
+    static final class Loop {
+        final int head, tail;
+        final long iterations;     // Times the backward edge was taken
+        final long instructions;   // Instructions executed inside [head, tail]
+
+        Loop(int head, int tail, long iterations, long instructions) {
+            this.head = head;
+            this.tail = tail;
+            this.iterations = iterations;
+            this.instructions = instructions;
+        }
+    }
+
+    // Loops found from backward edges, hottest (most instructions) first
+    List<Loop> loops() {
+        List<Loop> loops = new ArrayList<>();
+        for (int slot = 0; slot < counters.slots(); slot++) {
+            int tail = PcCounters.pc(slot);
+            int head = (int) counters.get(TARGET, slot);
+            long iterations = counters.get(TAKEN, slot);
+            if (iterations == 0 || head > tail) continue;
+            long body = 0;
+            for (int s = Math.max(0, (head - TEXT_BASE) >> 2); s <= slot; s++) body += counters.get(HITS, s);
+            loops.add(new Loop(head, tail, iterations, body));
+        }
+        loops.sort((a, b) -> Long.compare(b.instructions, a.instructions));
+        return loops;
+    }
+
+    // Print the profile: instruction mix, hottest PCs, branch outcomes and hot loops
+    public void report(PrintStream out, Symbols symbols, int top) {
+        out.printf("Profile: %d instructions (%d outside .text)%n", total, outsideText);
+
+        out.println("Instruction mix:");
+        Map<String, Long> classes = new TreeMap<>();
+        for (int op = RiscVInterpreter.OP_ADD; op < opCounts.length; op++) {
+            if (opCounts[op] == 0) continue;
+            out.printf("  %-8s %10d %6.2f%%%n", RiscVInterpreter.opName(op), opCounts[op], percent(opCounts[op]));
+            classes.merge(instructionClass(op), opCounts[op], Long::sum);
+        }
+        for (Map.Entry<String, Long> entry : classes.entrySet()) {
+            out.printf("  %-8s %10d %6.2f%%%n", "[" + entry.getKey() + "]", entry.getValue(), percent(entry.getValue()));
+        }
+
+        out.println("Hottest instructions:");
+        Integer[] order = counters.hottest(HITS);
+        for (int i = 0; i < Math.min(top, order.length) && counters.get(HITS, order[i]) > 0; i++) {
+            int pc = PcCounters.pc(order[i]);
+            long hits = counters.get(HITS, order[i]);
+            out.printf("  0x%04x %12d %6.2f%%  %s%n", pc, hits, percent(hits), symbols.describe(pc));
+        }
+
+        out.println("Branches:");
+        for (int slot = 0; slot < counters.slots(); slot++) {
+            if (counters.sum(slot, TAKEN, NOT_TAKEN) == 0) continue;
+            int pc = PcCounters.pc(slot);
+            out.printf("  0x%04x taken %10d  not taken %10d  %s%n",
+                    pc, counters.get(TAKEN, slot), counters.get(NOT_TAKEN, slot), symbols.describe(pc));
+        }
+
+        out.println("Hot loops:");
+        List<Loop> loops = loops();
+        for (int i = 0; i < Math.min(top, loops.size()); i++) {
+            Loop loop = loops.get(i);
+            out.printf("  %s .. 0x%04x: %d iterations, %d instructions (%.2f%%)%n",
+                    symbols.nameOf(loop.head), loop.tail, loop.iterations, loop.instructions, percent(loop.instructions));
+        }
+    }
+
+    private double percent(long count) {
+        return total == 0 ? 0 : 100.0 * count / total;
+    }
+
+    // Publish the counters as JFR events (no-ops unless a recording is running)
+    public void publish(Symbols symbols) {
+        for (int op = RiscVInterpreter.OP_ADD; op < opCounts.length; op++) {
+            if (opCounts[op] == 0) continue;
+            InstructionMixEvent event = new InstructionMixEvent();
+            event.mnemonic = RiscVInterpreter.opName(op);
+            event.instructionClass = instructionClass(op);
+            event.count = opCounts[op];
+            event.commit();
+        }
+        for (int slot = 0; slot < counters.slots(); slot++) {
+            if (counters.get(HITS, slot) == 0) continue;
+            HotspotEvent event = new HotspotEvent();
+            event.pc = PcCounters.pc(slot);
+            event.location = symbols.describe(event.pc);
+            event.count = counters.get(HITS, slot);
+            event.taken = counters.get(TAKEN, slot);
+            event.notTaken = counters.get(NOT_TAKEN, slot);
+            event.commit();
+        }
+        for (Loop loop : loops()) {
+            LoopEvent event = new LoopEvent();
+            event.head = loop.head;
+            event.tail = loop.tail;
+            event.label = symbols.nameOf(loop.head);
+            event.iterations = loop.iterations;
+            event.instructions = loop.instructions;
+            event.commit();
+        }
+    }
+
+    @Name("riscv.InstructionMix")
+    @Label("Guest Instruction Mix")
+    @Category("RISC-V Guest")
+    static class InstructionMixEvent extends Event {
+        @Label("Mnemonic") String mnemonic;
+        @Label("Class") String instructionClass;
+        @Label("Count") long count;
+    }
+
+    @Name("riscv.Hotspot")
+    @Label("Guest Hotspot")
+    @Category("RISC-V Guest")
+    static class HotspotEvent extends Event {
+        @Label("PC") int pc;
+        @Label("Location") String location;
+        @Label("Count") long count;
+        @Label("Branch Taken") long taken;
+        @Label("Branch Not Taken") long notTaken;
+    }
+
+    @Name("riscv.Loop")
+    @Label("Guest Loop")
+    @Category("RISC-V Guest")
+    static class LoopEvent extends Event {
+        @Label("Head PC") int head;
+        @Label("Tail PC") int tail;
+        @Label("Label") String label;
+        @Label("Iterations") long iterations;
+        @Label("Instructions") long instructions;
+    }
+
+    // Labels and source lines from the assembler's .sym sidecar (empty if there is none)
+    public static final class Symbols {
+        private final TreeMap<Integer, String> labels = new TreeMap<>(); // PC -> label
+        private final Map<Integer, String> lines = new TreeMap<>();      // PC -> "line N: source"
+
+        public static Symbols load(Path symFile) throws IOException {
+            Symbols symbols = new Symbols();
+            if (symFile == null || !Files.exists(symFile)) return symbols;
+            try (BufferedReader reader = Files.newBufferedReader(symFile)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ", 4);
+                    if (parts[0].equals("label") && parts.length == 3) {
+                        symbols.labels.put(TEXT_BASE + Integer.parseInt(parts[2]), parts[1]);
+                    } else if (parts[0].equals("line") && parts.length == 4) {
+                        symbols.lines.put(TEXT_BASE + Integer.parseInt(parts[1]), "line " + parts[2] + ": " + parts[3]);
+                    }
+                }
+            }
+            return symbols;
+        }
+
+        // Nearest label at or before pc, as "label+offset" (or the hex PC without symbols)
+        String nameOf(int pc) {
+            Map.Entry<Integer, String> label = labels.floorEntry(pc);
+            if (label == null) return String.format("0x%04x", pc);
+            int offset = pc - label.getKey();
+            return offset == 0 ? label.getValue() : label.getValue() + "+" + offset;
+        }
+
+        // Label and source line for pc
+        String describe(int pc) {
+            String source = lines.get(pc);
+            return source == null ? nameOf(pc) : nameOf(pc) + "  " + source;
+        }
+    }
+
+    // Run an ELF file with profiling on and print the report
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java GuestProfiler program.elf [program.sym]");
+            System.exit(1);
+        }
+        String symFile = args.length > 1 ? args[1] : RiscVAssembler.symbolFilePath(args[0]);
+        RiscVInterpreter rv = new RiscVInterpreter();
+        rv.loadElf(args[0]);
+        GuestProfiler profiler = new GuestProfiler();
+        rv.setProfiler(profiler);
+        rv.run();
+        Symbols symbols = Symbols.load(Paths.get(symFile));
+        profiler.report(System.out, symbols, 10);
+        profiler.publish(symbols);
+    }
+}
@@ -0,0 +1,135 @@
+// Host side of the guest's read and write system calls (see RiscVInterpreter.ecall): file
+// descriptors 0 (input), 1 (output) and 2 (errors) backed by NIO channels. Guest bytes are copied
+// page by page into a 64 KB buffer per descriptor (allocated on first use) and written to the
+// channel only when the buffer fills, before input is read, and when the program stops, so a guest
+// printing a few bytes per call costs one host write per buffer instead of one per call. Input is
+// read a buffer at a time.
+//
+// Host I/O errors are not thrown into the guest: the call returns -EIO (or, for a write that had
+// already taken some bytes, that partial count) and the first error is kept for failure().
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+public final class HostIO {
+    static final int STDIN = 0, STDOUT = 1, STDERR = 2;
+    static final int EBADF = 9, EIO = 5, EINVAL = 22; // Returned negated, as Linux system calls do
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out, err;
+    private ByteBuffer inBuffer; // Unread input between position and limit
+    private ByteBuffer outBuffer, errBuffer;
+    private long bytesRead, bytesWritten;
+    private IOException failure;
+
+    public HostIO(ReadableByteChannel in, WritableByteChannel out, WritableByteChannel err) {
+        this.in = in;
+        this.out = out;
+        this.err = err;
+    }
+
+    // Guest I/O on the host's standard streams (through System.out, so it stays in order with
+    // the interpreter's own messages)
+    public static HostIO console() {
+        return new HostIO(Channels.newChannel(System.in), Channels.newChannel(System.out), Channels.newChannel(System.err));
+    }
+
+    // Guest input from a stream and output (both descriptors) into another, e.g. for tests and batch runs
+    public static HostIO of(InputStream in, OutputStream out) {
+        WritableByteChannel channel = Channels.newChannel(out);
+        return new HostIO(Channels.newChannel(in), channel, channel);
+    }
+
+    // write(fd, buf, count): returns count, the bytes taken before a host error, or a negated error
+    int write(GuestMemory memory, int fd, int addr, int count) {
+        if (fd != STDOUT && fd != STDERR) return -EBADF;
+        if (count < 0) return -EINVAL;
+        if (fd == STDOUT && outBuffer == null) outBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        if (fd == STDERR && errBuffer == null) errBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer buffer = fd == STDOUT ? outBuffer : errBuffer;
+        int done = 0;
+        while (done < count) {
+            if (!buffer.hasRemaining() && !drain(buffer, fd == STDOUT ? out : err)) {
+                bytesWritten += done;
+                return done > 0 ? done : -EIO;
+            }
+            int chunk = Math.min(count - done, buffer.remaining());
+            memory.read(addr + done, buffer.slice(buffer.position(), chunk));
+            buffer.position(buffer.position() + chunk);
+            done += chunk;
+        }
+        bytesWritten += count;
+        return count;
+    }
+
+    // read(fd, buf, count): returns the bytes read (fewer than count if less input is ready, 0 at
+    // end of input), or a negated error
+    int read(GuestMemory memory, int fd, int addr, int count) {
+        if (fd != STDIN) return -EBADF;
+        if (count < 0) return -EINVAL;
+        if (count == 0) return 0;
+        flush(); // Show any prompt before waiting for input
+        if (inBuffer == null) inBuffer = ByteBuffer.allocate(BUFFER_SIZE).limit(0);
+        if (!inBuffer.hasRemaining()) {
+            inBuffer.clear();
+            try {
+                int n = in.read(inBuffer);
+                inBuffer.flip();
+                if (n < 0) return 0;
+            } catch (IOException e) {
+                inBuffer.limit(0);
+                return fail(e);
+            }
+        }
+        int n = Math.min(count, inBuffer.remaining());
+        memory.write(addr, inBuffer.slice(inBuffer.position(), n));
+        inBuffer.position(inBuffer.position() + n);
+        bytesRead += n;
+        return n;
+    }
+
+    // Write out everything buffered so far
+    public void flush() {
+        drain(outBuffer, out);
+        drain(errBuffer, err);
+    }
+
+    private boolean drain(ByteBuffer buffer, WritableByteChannel channel) {
+        if (buffer == null) return true;
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) channel.write(buffer);
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        } finally {
+            buffer.clear(); // Output that could not be written is dropped
+        }
+    }
+
+    private int fail(IOException e) {
+        if (failure == null) failure = e;
+        return -EIO;
+    }
+
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    // First host I/O error, or null
+    public IOException failure() {
+        return failure;
+    }
+}
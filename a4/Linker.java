@@ -0,0 +1,286 @@
+// Builds one program from several .asm files. Every file is assembled into a relocatable
+// ObjectFile, in parallel on a work-stealing ForkJoinPool, and the objects are linked: their .text
+// sections are placed one after another from TEXT_BASE in the order given (so the first file holds
+// the entry point), and branches and jumps across files are patched.
+//
+// Labels are file-local: a branch to a label its own file defines never leaves the file, so
+// ordinary names like loop or done can repeat across files. A label another file branches to must
+// be defined in exactly one file. Loads and stores address .data by absolute address (there are no
+// data labels to relocate), so only the first file may have a .data section, placed at DATA_BASE
+// (or right after .text once .text runs past it; see ProgramImage.dataAddressFor).
+//
+// Objects are cached by SHA-256 of the file name and contents, in memory and (with a cache
+// directory) on disk as <hash>.o, so after one file changes only that file is assembled again.
+//
+//   java Linker [-threads N] [-cache dir] [-nosym] [-o program.elf] a.asm b.asm ...
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Linker {
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Path cacheDirectory;    // null = cache in memory only
+    private boolean symbols = true; // Keep source lines in objects for the .sym sidecar
+
+    private final Map<String, ObjectFile> cache = new ConcurrentHashMap<>(); // Content hash -> object
+    private final ThreadLocal<RiscVAssembler> assemblers = ThreadLocal.withInitial(RiscVAssembler::new);
+
+    // Objects assembled and objects reused from the cache by the last build
+    private final AtomicInteger assembled = new AtomicInteger();
+    private final AtomicInteger reused = new AtomicInteger();
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setCacheDirectory(Path cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public void setSymbols(boolean symbols) {
+        this.symbols = symbols;
+    }
+
+    public int assembled() {
+        return assembled.get();
+    }
+
+    public int reused() {
+        return reused.get();
+    }
+
+    // Assemble (or fetch from the cache) every source file and link the objects
+    public ProgramImage build(List<Path> sources) throws IOException {
+        return link(objects(sources));
+    }
+
+    // Build and write the ELF file (plus its .sym sidecar, with symbols on)
+    public ProgramImage build(List<Path> sources, String elfFilePath) throws IOException {
+        List<ObjectFile> objects = objects(sources);
+        ProgramImage image = link(objects);
+        image.writeElf(Paths.get(elfFilePath));
+        if (symbols) writeSymbolFile(objects, RiscVAssembler.symbolFilePath(elfFilePath));
+        return image;
+    }
+
+    // One object per source file, in order, assembled in parallel. If files fail, the error of the
+    // first one is thrown, as a sequential build would.
+    public List<ObjectFile> objects(List<Path> sources) throws IOException {
+        assembled.set(0);
+        reused.set(0);
+        ObjectFile[] objects = new ObjectFile[sources.size()];
+        Exception[] failures = new Exception[sources.size()];
+        Parallel.forEach(sources.size(), threads, i -> {
+            try {
+                objects[i] = object(sources.get(i));
+            } catch (IOException | RuntimeException e) {
+                failures[i] = e;
+            }
+        });
+        for (Exception failure : failures) {
+            if (failure instanceof IOException) throw (IOException) failure;
+            if (failure != null) throw (RuntimeException) failure;
+        }
+        return Arrays.asList(objects);
+    }
+
+    // The object for one source file: from memory, from the cache directory, or assembled
+    private ObjectFile object(Path source) throws IOException {
+        byte[] contents = Files.readAllBytes(source);
+        String name = source.toString();
+        String key = hash(name, contents);
+        ObjectFile object = cache.get(key);
+        if (object == null && cacheDirectory != null) {
+            Path cached = cacheDirectory.resolve(key + ".o");
+            if (Files.exists(cached)) {
+                object = ObjectFile.read(cached);
+                cache.put(key, object);
+            }
+        }
+        if (object != null) {
+            reused.incrementAndGet();
+            return object;
+        }
+
+        RiscVAssembler assembler = assemblers.get();
+        assembler.setSymbols(symbols);
+        try {
+            object = assembler.assembleObject(new String(contents, StandardCharsets.UTF_8), name);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(name + ": " + e.getMessage(), e);
+        }
+        assembled.incrementAndGet();
+        cache.put(key, object);
+        if (cacheDirectory != null) {
+            // Write to a temporary file first so concurrent builds never read half an object
+            Files.createDirectories(cacheDirectory);
+            Path temp = Files.createTempFile(cacheDirectory, key, ".tmp");
+            object.write(temp);
+            Files.move(temp, cacheDirectory.resolve(key + ".o"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        return object;
+    }
+
+    // Cache key: the file name (it appears in errors and symbols), the symbols setting and the contents
+    private String hash(String name, byte[] contents) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(name.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update((byte) (symbols ? 1 : 0));
+            md.update(contents);
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Lay the objects out one after another and resolve every relocation
+    public static ProgramImage link(List<ObjectFile> objects) {
+        int textWords = 0;
+        for (int i = 0; i < objects.size(); i++) {
+            ObjectFile object = objects.get(i);
+            textWords += object.text.length;
+            if (i > 0 && object.dataSize() > 0) {
+                throw new IllegalArgumentException(object.name + ": .data is only allowed in the first file (" +
+                        objects.get(0).name + "); loads and stores use absolute addresses, " +
+                        "so data of later files cannot be relocated");
+            }
+        }
+        int[] text = new int[textWords];
+        byte[] data = objects.isEmpty() ? new byte[0] : objects.get(0).data;
+        Map<String, List<Integer>> definedIn = new HashMap<>(); // Label -> indexes of the objects defining it
+        int[] textOffsets = new int[objects.size()];            // Byte offset of each object in .text
+
+        int textOffset = 0;
+        for (int i = 0; i < objects.size(); i++) {
+            ObjectFile object = objects.get(i);
+            System.arraycopy(object.text, 0, text, textOffset / 4, object.text.length);
+            for (String label : object.symbols.keySet()) {
+                definedIn.computeIfAbsent(label, k -> new ArrayList<>()).add(i);
+            }
+            textOffsets[i] = textOffset;
+            textOffset += object.textSize();
+        }
+
+        for (int i = 0; i < objects.size(); i++) {
+            ObjectFile object = objects.get(i);
+            for (int r = 0; r < object.relocationCount(); r++) {
+                String label = object.relocationLabel[r];
+                int line = object.relocationLine[r];
+                List<Integer> definers = definedIn.getOrDefault(label, Collections.emptyList());
+                if (definers.isEmpty()) {
+                    throw new IllegalArgumentException(object.name + ": line " + line + ": Undefined label: " + label);
+                }
+                if (definers.size() > 1) {
+                    List<String> names = new ArrayList<>();
+                    for (int d : definers) names.add(objects.get(d).name);
+                    throw new IllegalArgumentException(object.name + ": line " + line + ": Label " + label +
+                            " is defined in more than one file: " + String.join(", ", names));
+                }
+                int definer = definers.get(0);
+                int target = textOffsets[definer] + objects.get(definer).symbols.get(label);
+                int index = textOffsets[i] / 4 + object.relocationIndex[r];
+                try {
+                    text[index] = RiscVAssembler.patchOffset(text[index], target - index * 4 - 4, label, line);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(object.name + ": " + e.getMessage(), e);
+                }
+            }
+        }
+
+        Map<String, Integer> labels = new LinkedHashMap<>(); // Label -> byte offset in the combined .text
+        for (int i = 0; i < objects.size(); i++) {
+            for (Map.Entry<String, Integer> symbol : symbolNames(objects, definedIn, i).entrySet()) {
+                labels.put(symbol.getKey(), textOffsets[i] + symbol.getValue());
+            }
+        }
+        return ProgramImage.of(text, textWords, data, data.length, labels);
+    }
+
+    // Labels of object i under their names in the linked program: a label defined in one file keeps
+    // its name; one several files define (each for its own use) becomes "file:label"
+    private static Map<String, Integer> symbolNames(List<ObjectFile> objects, Map<String, List<Integer>> definedIn, int i) {
+        ObjectFile object = objects.get(i);
+        Map<String, Integer> names = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> symbol : object.symbols.entrySet()) {
+            String label = symbol.getKey();
+            names.put(definedIn.get(label).size() > 1 ? object.name + ":" + label : label, symbol.getValue());
+        }
+        return names;
+    }
+
+    // Symbol sidecar for the linked program, in RiscVAssembler's format; source lines are prefixed
+    // with their file name
+    static void writeSymbolFile(List<ObjectFile> objects, String symFilePath) throws IOException {
+        Map<String, List<Integer>> definedIn = new HashMap<>();
+        for (int i = 0; i < objects.size(); i++) {
+            for (String label : objects.get(i).symbols.keySet()) {
+                definedIn.computeIfAbsent(label, k -> new ArrayList<>()).add(i);
+            }
+        }
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(symFilePath)))) {
+            List<String> names = new ArrayList<>();
+            for (ObjectFile object : objects) names.add(object.name);
+            out.println("# Symbols for " + String.join(" ", names));
+            int textOffset = 0;
+            for (int i = 0; i < objects.size(); i++) {
+                for (Map.Entry<String, Integer> symbol : symbolNames(objects, definedIn, i).entrySet()) {
+                    out.println("label " + symbol.getKey() + " " + (textOffset + symbol.getValue()));
+                }
+                textOffset += objects.get(i).textSize();
+            }
+            textOffset = 0;
+            for (ObjectFile object : objects) {
+                for (int i = 0; i < object.text.length; i++) {
+                    String source = object.sourceLines == null ? "" : object.sourceLines[i];
+                    out.println("line " + (textOffset + i * 4) + " " + object.lineNumbers[i] + " " +
+                            object.name + ": " + source);
+                }
+                textOffset += object.textSize();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Linker linker = new Linker();
+        String elf = "a.elf";
+        List<Path> sources = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-threads": linker.setThreads(Integer.parseInt(args[++i])); break;
+                case "-cache": linker.setCacheDirectory(Paths.get(args[++i])); break;
+                case "-nosym": linker.setSymbols(false); break;
+                case "-o": elf = args[++i]; break;
+                default: sources.add(Paths.get(args[i]));
+            }
+        }
+        if (sources.isEmpty()) {
+            System.err.println("Usage: java Linker [-threads N] [-cache dir] [-nosym] [-o program.elf] a.asm b.asm ...");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        ProgramImage image = linker.build(sources, elf);
+        System.out.printf("Linked %d files (%d assembled, %d cached) into %s: %d bytes .text, %d bytes .data in %.1f ms%n",
+                sources.size(), linker.assembled(), linker.reused(), elf, image.textSize(), image.dataSize(),
+                (System.nanoTime() - start) / 1e6);
+    }
+}
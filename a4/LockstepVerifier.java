@@ -0,0 +1,308 @@
+// Differential check of the fast execution engine: runs a program on RiscVInterpreter (decode
+// cache, dispatch table, compiled blocks, paged memory) and on ReferenceInterpreter side by side,
+// one basic block at a time, and after every block compares the stop reason, PC, x1..x31, exit code
+// and every memory word either engine has written since the last block. The first difference stops
+// the run with a diff: where it happened, the differing values and the instructions of the block.
+// The same state is compared when a program stops, whatever the reason (including memory faults).
+// A hot block the block compiler failed to define also counts as a divergence, since the engine
+// under test would otherwise quietly check its interpreter instead.
+//
+// Without program files it generates random ones: valid instruction streams built from
+// RiscVAssembler's encodings (ALU ops, loads and stores into .data and now and then into .text,
+// branches and jumps inside the program, system calls), plus the odd random word. Programs are
+// checked in parallel; a diverging one is written to divergence-<seed>.elf to reproduce it.
+//
+//   java LockstepVerifier [-programs N] [-seed S] [-length N] [-jit N] [-limit N] [-threads N] [program.elf ...]
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LockstepVerifier {
+    private int jitThreshold = 1; // Compile every block on its first run, to check compiled code most
+    private long instructionLimit = 100_000;
+
+    public void setJitThreshold(int threshold) {
+        jitThreshold = threshold;
+    }
+
+    public void setInstructionLimit(long limit) {
+        instructionLimit = limit;
+    }
+
+    // Outcome of checking one program
+    public static final class Result {
+        final long instructions;
+        final RiscVInterpreter.StopReason stopReason; // INSTRUCTION_LIMIT if it ran out
+        final String divergence;                      // null if both engines agreed throughout
+
+        Result(long instructions, RiscVInterpreter.StopReason stopReason, String divergence) {
+            this.instructions = instructions;
+            this.stopReason = stopReason;
+            this.divergence = divergence;
+        }
+
+        public boolean diverged() {
+            return divergence != null;
+        }
+    }
+
+    // Word-aligned addresses written since the last comparison
+    private static final class WriteSet implements RiscVInterpreter.StoreListener {
+        int[] words = new int[16];
+        int count;
+
+        @Override
+        public void stored(int addr, int size) {
+            for (long a = addr & ~3L; a < (long) addr + size; a += 4) {
+                if (count == words.length) words = Arrays.copyOf(words, count * 2);
+                words[count++] = (int) a;
+            }
+        }
+    }
+
+    public Result verify(ProgramImage image) {
+        RiscVInterpreter fast = new RiscVInterpreter();
+        fast.setVerbose(false);
+        fast.setJitThreshold(jitThreshold);
+        fast.setHostIO(HostIO.of(InputStream.nullInputStream(), OutputStream.nullOutputStream()));
+        fast.load(image);
+        ReferenceInterpreter reference = new ReferenceInterpreter(image);
+        WriteSet fastWrites = new WriteSet(), referenceWrites = new WriteSet();
+        fast.setStoreListener(fastWrites);
+        reference.setStoreListener(referenceWrites);
+        int[] blockPcs = new int[BlockCompiler.MAX_BLOCK_LENGTH * 2];
+
+        while (fast.instructionCount() < instructionLimit) {
+            int blockPc = fast.pc();
+            long before = fast.instructionCount();
+            boolean running = fast.runBlock();
+
+            // The reference runs the same number of instructions, or if the fast engine stopped,
+            // until it stops too (at most a block past the fast engine, to show where it went)
+            long target = running ? fast.instructionCount() : before + blockPcs.length;
+            int executed = 0;
+            while (reference.instret < target && reference.stopReason == null) {
+                if (executed < blockPcs.length) blockPcs[executed++] = reference.pc;
+                reference.step();
+            }
+
+            String diff = compare(fast, reference, fastWrites, referenceWrites);
+            if (diff != null) {
+                StringBuilder report = new StringBuilder();
+                report.append(String.format("Divergence in the block at 0x%x (instructions %d..%d, optimized vs reference):%n",
+                        blockPc, before, Math.max(fast.instructionCount(), reference.instret)));
+                report.append(diff);
+                for (int i = 0; i < executed; i++) {
+                    report.append(String.format("  0x%04x: %s%n", blockPcs[i], disassemble(reference, blockPcs[i])));
+                }
+                return new Result(fast.instructionCount(), fast.stopReason(), report.toString());
+            }
+            fastWrites.count = 0;
+            referenceWrites.count = 0;
+            if (!running) return new Result(fast.instructionCount(), fast.stopReason(), null);
+        }
+        return new Result(fast.instructionCount(), RiscVInterpreter.StopReason.INSTRUCTION_LIMIT, null);
+    }
+
+    // The differences between the two engines, one per line, or null if there are none
+    private static String compare(RiscVInterpreter fast, ReferenceInterpreter reference, WriteSet fastWrites,
+                                  WriteSet referenceWrites) {
+        StringBuilder diff = new StringBuilder();
+        if (fast.stopReason() != reference.stopReason) {
+            diff.append(String.format("  stop: %s vs %s (%s)%n", fast.stopReason(), reference.stopReason,
+                    fast.stopReason() != null ? fast.stopMessage() : reference.stopMessage));
+        }
+        if (fast.instructionCount() != reference.instret) {
+            diff.append(String.format("  instructions: %d vs %d%n", fast.instructionCount(), reference.instret));
+        }
+        if (fast.pc() != reference.pc) {
+            diff.append(String.format("  pc: 0x%x vs 0x%x%n", fast.pc(), reference.pc));
+        }
+        for (int i = 1; i < 32; i++) {
+            if (fast.register(i) != reference.registers[i]) {
+                diff.append(String.format("  x%d: 0x%08x vs 0x%08x%n", i, fast.register(i), reference.registers[i]));
+            }
+        }
+        if (fast.exitCode() != reference.exitCode) {
+            diff.append(String.format("  exit code: %d vs %d%n", fast.exitCode(), reference.exitCode));
+        }
+        if (fast.compileFailures() > 0) { // The engine under test fell back to interpreting a block
+            diff.append(String.format("  compile failures: %d (last at %s)%n", fast.compileFailures(), fast.lastCompileFailure()));
+        }
+        Map<Integer, String> memory = new TreeMap<>();
+        compareWords(fast, reference, fastWrites, memory);
+        compareWords(fast, reference, referenceWrites, memory);
+        for (String line : memory.values()) diff.append(line);
+        return diff.length() == 0 ? null : diff.toString();
+    }
+
+    private static void compareWords(RiscVInterpreter fast, ReferenceInterpreter reference, WriteSet writes,
+                                     Map<Integer, String> out) {
+        for (int i = 0; i < writes.count; i++) {
+            int addr = writes.words[i];
+            int expected = reference.load(addr, 4);
+            int actual = fast.memory().loadWord(addr);
+            if (actual != expected) {
+                out.put(addr, String.format("  mem[0x%x]: 0x%08x vs 0x%08x%n", addr, actual, expected));
+            }
+        }
+    }
+
+    // Assembly text of the word at addr in the reference's memory
+    private static String disassemble(ReferenceInterpreter reference, int addr) {
+        int instr = reference.load(addr, 4);
+        int fields = RiscVInterpreter.decodeFields(instr);
+        int op = fields & 0xFF;
+        if (op == RiscVInterpreter.OP_INVALID) return String.format("%08x  (invalid)", instr);
+        int rd = (fields >> 8) & 0x1F, rs1 = (fields >> 13) & 0x1F, rs2 = (fields >> 18) & 0x1F;
+        int imm = RiscVInterpreter.decodeImmediate(instr, op);
+        String name = RiscVInterpreter.opName(op);
+        String operands;
+        switch (name) {
+            case "lw": operands = "x" + rd + ", " + imm + "(x" + rs1 + ")"; break;
+            case "sw": operands = "x" + rs2 + ", " + imm + "(x" + rs1 + ")"; break;
+            case "addi": operands = "x" + rd + ", x" + rs1 + ", " + imm; break;
+            case "beq": case "bne": case "blt": operands = "x" + rs1 + ", x" + rs2 + ", " + imm; break;
+            case "jal": operands = "x" + rd + ", " + imm; break;
+            case "ecall": operands = ""; break;
+            default: operands = "x" + rd + ", x" + rs1 + ", x" + rs2;
+        }
+        return String.format("%08x  %s %s", instr, name, operands).trim();
+    }
+
+    // A random program of length instructions plus the exit, and 256 bytes of random .data. The same
+    // seed always gives the same program. Addresses come from x0 plus a 12-bit immediate and aim at
+    // DATA_BASE, where .data is unless the program is long enough to move it; then they hit code.
+    public static ProgramImage randomProgram(long seed, int length) {
+        Random random = new Random(seed);
+        int[] text = new int[length + 1];
+        int i = 0;
+        while (i < length) {
+            int kind = random.nextInt(100);
+            if (kind < 40) {                                  // ALU
+                int rd = randomRegister(random), rs1 = randomRegister(random), rs2 = randomRegister(random);
+                int op = kind < 15 ? RiscVAssembler.ADD : kind < 22 ? RiscVAssembler.SUB : RiscVAssembler.ADDI;
+                text[i++] = RiscVAssembler.encode(op, rd, rs1, rs2, random.nextInt(4096) - 2048);
+            } else if (kind < 60) {                           // Load or store
+                int op = random.nextBoolean() ? RiscVAssembler.LW : RiscVAssembler.SW;
+                int which = random.nextInt(10);
+                int base = 0, offset;
+                if (which < 7) {
+                    offset = RiscVInterpreter.DATA_BASE + 4 * random.nextInt(256);
+                } else if (which < 8) {
+                    offset = RiscVInterpreter.TEXT_BASE + 4 * random.nextInt(Math.min(length + 1, 496)); // Into the code (below 2 KB)
+                } else {
+                    base = randomRegister(random);            // Wherever a register points (may fault)
+                    offset = 4 * random.nextInt(64) - 128;
+                }
+                text[i++] = RiscVAssembler.encode(op, randomRegister(random), base, randomRegister(random), offset);
+            } else if (kind < 85) {                           // Branch or jump within the program
+                int op = kind < 72 ? RiscVAssembler.BEQ : kind < 77 ? RiscVAssembler.BNE
+                       : kind < 80 ? RiscVAssembler.BLT : RiscVAssembler.JAL;
+                int target = random.nextInt(length + 1);
+                int reach = op == RiscVAssembler.JAL ? 1 << 18 : 1 << 10; // Instructions within +-1 MB or +-4 KB
+                target = Math.max(i + 1 - reach, Math.min(i + reach, target));
+                int offset = (target - i - 1) * 4;
+                if (random.nextInt(50) == 0) offset += 2;   // Now and then a misaligned target
+                int rd = op == RiscVAssembler.JAL && random.nextBoolean() ? 1 : 0;
+                text[i++] = RiscVAssembler.encode(op, rd, randomRegister(random), randomRegister(random), offset);
+            } else if (kind < 97 && i + 5 <= length) {      // System call with plausible arguments
+                int[] calls = {RiscVInterpreter.SYS_READ, RiscVInterpreter.SYS_WRITE, RiscVInterpreter.SYS_EXIT,
+                               RiscVInterpreter.SYS_COUNTER, random.nextInt(1024)};
+                text[i++] = RiscVAssembler.encode(RiscVAssembler.ADDI, 17, 0, 0, calls[random.nextInt(calls.length)]);
+                text[i++] = RiscVAssembler.encode(RiscVAssembler.ADDI, 10, 0, 0, random.nextInt(4));
+                text[i++] = RiscVAssembler.encode(RiscVAssembler.ADDI, 11, 0, 0, RiscVInterpreter.DATA_BASE + random.nextInt(256));
+                text[i++] = RiscVAssembler.encode(RiscVAssembler.ADDI, 12, 0, 0, random.nextInt(64));
+                text[i++] = RiscVAssembler.encode(RiscVAssembler.ECALL, 0, 0, 0, 0);
+            } else {                                          // Anything at all
+                text[i++] = random.nextInt();
+            }
+        }
+        text[length] = RiscVAssembler.encode(RiscVAssembler.JAL, 0, 0, 0, 0); // Exit
+        byte[] data = new byte[256];
+        random.nextBytes(data);
+        return ProgramImage.of(text, text.length, data, data.length, Collections.emptyMap());
+    }
+
+    // Mostly x1..x7, so values flow between instructions; x0 now and then
+    private static int randomRegister(Random random) {
+        int r = random.nextInt(16);
+        return r < 12 ? 1 + r % 7 : r == 12 ? 0 : random.nextInt(32);
+    }
+
+    // Check random programs seed, seed + 1, ... in parallel; returns the seed of a diverging one, if any
+    public OptionalLong fuzz(int programs, long seed, int length, int threads) {
+        AtomicLong diverging = new AtomicLong(Long.MAX_VALUE);
+        Map<String, Integer> outcomes = new TreeMap<>();
+        AtomicLong instructions = new AtomicLong();
+        long start = System.nanoTime();
+        Parallel.forEach(programs, threads, i -> {
+            if (diverging.get() != Long.MAX_VALUE) return; // Stop checking once one program diverged
+            long programSeed = seed + i;
+            Result result = verify(randomProgram(programSeed, length));
+            instructions.addAndGet(result.instructions);
+            synchronized (outcomes) {
+                outcomes.merge(result.diverged() ? "DIVERGED" : String.valueOf(result.stopReason), 1, Integer::sum);
+            }
+            if (result.diverged() && diverging.compareAndSet(Long.MAX_VALUE, programSeed)) {
+                System.out.println("Seed " + programSeed + ": " + result.divergence);
+            }
+        });
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d programs, %d instructions in %.3f s (%.0f programs/s) %s%n", programs,
+                instructions.get(), seconds, programs / seconds, outcomes);
+        return diverging.get() == Long.MAX_VALUE ? OptionalLong.empty() : OptionalLong.of(diverging.get());
+    }
+
+    public static void main(String[] args) throws IOException {
+        LockstepVerifier verifier = new LockstepVerifier();
+        int programs = 1000, length = 200;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = System.nanoTime();
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-programs": programs = Integer.parseInt(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                case "-length": length = Integer.parseInt(args[++i]); break;
+                case "-jit": verifier.setJitThreshold(Integer.parseInt(args[++i])); break;
+                case "-limit": verifier.setInstructionLimit(Long.parseLong(args[++i])); break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                default: files.add(Paths.get(args[i]));
+            }
+        }
+
+        boolean diverged = false;
+        if (!files.isEmpty()) {
+            for (Path file : files) {
+                Result result = verifier.verify(ProgramImage.map(file.toString()));
+                System.out.println(file + ": " + (result.diverged() ? result.divergence
+                        : result.stopReason + " after " + result.instructions + " instructions, no divergence"));
+                diverged |= result.diverged();
+            }
+        } else {
+            System.out.println("Checking " + programs + " random programs from seed " + seed);
+            OptionalLong found = verifier.fuzz(programs, seed, length, threads);
+            if (found.isPresent()) {
+                long diverging = found.getAsLong();
+                String elf = "divergence-" + diverging + ".elf";
+                randomProgram(diverging, length).writeElf(Paths.get(elf));
+                System.out.println("Wrote " + elf + " (or rerun with -seed " + diverging + " -programs 1)");
+                diverged = true;
+            }
+        }
+        System.exit(diverged ? 1 : 0);
+    }
+}
@@ -0,0 +1,132 @@
+// A relocatable object: one source file of a multi-file program, assembled on its own by
+// RiscVAssembler.assembleObject. Holds the file's .text and .data, its symbol table (labels it
+// defines) and its relocations (branches and jumps to labels defined in other files, encoded with
+// offset 0). Linker places objects one after another and patches the relocations.
+//
+// Objects are saved in the Linker's build cache. Layout (DataOutputStream, big-endian): "RVOB",
+// version, name, text words, data bytes, symbols (name, offset), relocations (index, label, line),
+// line numbers, then a flag and the source lines if they were kept.
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class ObjectFile {
+    static final int MAGIC = 0x424F5652; // "RVOB"
+    static final int VERSION = 1;
+
+    final String name;                  // Source file, for link errors
+    final int[] text;                   // Instructions
+    final byte[] data;                  // .data contents
+    final Map<String, Integer> symbols; // Label -> byte offset in this object's .text
+
+    // Relocations: instruction index, label and source line of each branch or jump to be patched
+    final int[] relocationIndex;
+    final String[] relocationLabel;
+    final int[] relocationLine;
+
+    final int[] lineNumbers;    // Source line of each instruction
+    final String[] sourceLines; // Source text of each instruction (null with symbols off)
+
+    ObjectFile(String name, int[] text, byte[] data, Map<String, Integer> symbols, int[] relocationIndex,
+               String[] relocationLabel, int[] relocationLine, int[] lineNumbers, String[] sourceLines) {
+        this.name = name;
+        this.text = text;
+        this.data = data;
+        this.symbols = Collections.unmodifiableMap(symbols);
+        this.relocationIndex = relocationIndex;
+        this.relocationLabel = relocationLabel;
+        this.relocationLine = relocationLine;
+        this.lineNumbers = lineNumbers;
+        this.sourceLines = sourceLines;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    // Size of .text in bytes
+    public int textSize() {
+        return text.length * 4;
+    }
+
+    public int dataSize() {
+        return data.length;
+    }
+
+    public Map<String, Integer> symbols() {
+        return symbols;
+    }
+
+    public int relocationCount() {
+        return relocationIndex.length;
+    }
+
+    public void write(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(name);
+            out.writeInt(text.length);
+            for (int instr : text) out.writeInt(instr);
+            out.writeInt(data.length);
+            out.write(data);
+            out.writeInt(symbols.size());
+            for (Map.Entry<String, Integer> symbol : symbols.entrySet()) {
+                out.writeUTF(symbol.getKey());
+                out.writeInt(symbol.getValue());
+            }
+            out.writeInt(relocationIndex.length);
+            for (int i = 0; i < relocationIndex.length; i++) {
+                out.writeInt(relocationIndex[i]);
+                out.writeUTF(relocationLabel[i]);
+                out.writeInt(relocationLine[i]);
+            }
+            for (int line : lineNumbers) out.writeInt(line);
+            out.writeBoolean(sourceLines != null);
+            if (sourceLines != null) {
+                for (String source : sourceLines) out.writeUTF(source);
+            }
+        }
+    }
+
+    public static ObjectFile read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not an object file: " + file);
+            }
+            String name = in.readUTF();
+            int[] text = new int[in.readInt()];
+            for (int i = 0; i < text.length; i++) text[i] = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            int symbolCount = in.readInt();
+            Map<String, Integer> symbols = new LinkedHashMap<>();
+            for (int i = 0; i < symbolCount; i++) symbols.put(in.readUTF(), in.readInt());
+            int relocations = in.readInt();
+            int[] index = new int[relocations];
+            String[] label = new String[relocations];
+            int[] line = new int[relocations];
+            for (int i = 0; i < relocations; i++) {
+                index[i] = in.readInt();
+                label[i] = in.readUTF();
+                line[i] = in.readInt();
+            }
+            int[] lineNumbers = new int[text.length];
+            for (int i = 0; i < text.length; i++) lineNumbers[i] = in.readInt();
+            String[] sourceLines = null;
+            if (in.readBoolean()) {
+                sourceLines = new String[text.length];
+                for (int i = 0; i < text.length; i++) sourceLines[i] = in.readUTF();
+            }
+            return new ObjectFile(name, text, data, symbols, index, label, line, lineNumbers, sourceLines);
+        }
+    }
+}
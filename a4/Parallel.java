@@ -0,0 +1,45 @@
+// Work-stealing loop shared by the tools that process many independent items (BatchRunner,
+// Linker, LockstepVerifier): runs task(0) .. task(count - 1) on a ForkJoinPool of the given size.
+// The index range is split in halves until one index is left, so idle workers can steal work
+// however uneven the items are. A task that throws stops the loop and the exception is rethrown by
+// forEach; tasks that must not stop the others catch their own failures.
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+final class Parallel {
+    private Parallel() {
+    }
+
+    static void forEach(int count, int threads, IntConsumer task) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new Range(task, 0, count));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static final class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final transient IntConsumer task;
+        private final int from, to;
+
+        Range(IntConsumer task, int from, int to) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Range(task, from, mid), new Range(task, mid, to));
+            } else if (to > from) {
+                task.accept(from);
+            }
+        }
+    }
+}
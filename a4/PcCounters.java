@@ -0,0 +1,65 @@
+// Per-instruction counters shared by the observers (GuestProfiler, PipelineModel, CacheSimulator):
+// a fixed number of long columns, one row per .text slot, slot = (pc - TEXT_BASE) >> 2. The
+// observers' reset(textWords) clears and sizes them; RiscVInterpreter calls it whenever a
+// different program is loaded or restored, so counts are never reported against another
+// program's PCs.
+
+import java.util.Arrays;
+
+final class PcCounters {
+    private static final int TEXT_BASE = RiscVInterpreter.TEXT_BASE;
+
+    private final long[][] columns;
+    private int slots;
+
+    PcCounters(int columnCount) {
+        columns = new long[columnCount][0];
+    }
+
+    // Clear every counter and size the rows for a .text section of textWords instructions
+    void reset(int textWords) {
+        for (int c = 0; c < columns.length; c++) columns[c] = new long[textWords];
+        slots = textWords;
+    }
+
+    int slots() {
+        return slots;
+    }
+
+    // Row of the instruction at pc, or -1 if pc is outside .text
+    int slot(int pc) {
+        int slot = (pc - TEXT_BASE) >> 2;
+        return slot >= 0 && slot < slots ? slot : -1;
+    }
+
+    static int pc(int slot) {
+        return TEXT_BASE + (slot << 2);
+    }
+
+    void add(int column, int slot, long count) {
+        columns[column][slot] += count;
+    }
+
+    void set(int column, int slot, long value) {
+        columns[column][slot] = value;
+    }
+
+    long get(int column, int slot) {
+        return columns[column][slot];
+    }
+
+    // Sum of some columns in a row
+    long sum(int slot, int... sumColumns) {
+        long total = 0;
+        for (int c : sumColumns) total += columns[c][slot];
+        return total;
+    }
+
+    // Slots in order of the sum of some columns, largest first, for the observers' reports
+    Integer[] hottest(int... sortColumns) {
+        Integer[] order = new Integer[slots];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(sum(b, sortColumns), sum(a, sortColumns)));
+        return order;
+    }
+}
@@ -0,0 +1,231 @@
+// Timing model of a classic in-order five-stage pipeline (IF, ID, EX, MEM, WB) for the RISC-V
+// interpreter. It observes the executed instruction stream and counts cycles without changing any
+// results: data hazards (with or without forwarding), load-use stalls, and branch penalties under a
+// configurable predictor. Reports cycles, CPI and where the stalls came from, per PC.
+//
+//   java PipelineModel program.elf [static|1bit|2bit] [noforward]
+//
+// Model: one instruction enters EX per cycle unless it has to wait for an operand or for a
+// redirect. Branches resolve in EX, so a misprediction costs MISPREDICT_PENALTY cycles; a
+// correctly predicted taken branch costs nothing (the target comes from a branch target buffer).
+// jal is decoded in ID and always costs JUMP_PENALTY cycles. With forwarding, ALU results reach the
+// next instruction's EX directly and loads one cycle later (the load-use stall); store data is only
+// needed in MEM. Without forwarding, a value can be read in ID in the cycle it is written back.
+// Memory has no latency here (CacheSimulator counts misses separately), so an ecall costs one
+// instruction slot however many bytes its read or write copies.
+
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public class PipelineModel {
+    static final int MISPREDICT_PENALTY = 2; // IF and ID flushed
+    static final int JUMP_PENALTY = 1;       // IF flushed
+    private static final int PREDICTOR_ENTRIES = 1024; // Must be a power of two
+
+    public enum Predictor {
+        STATIC,  // Backward taken, forward not taken
+        ONE_BIT, // Last outcome per branch
+        TWO_BIT  // Saturating counter per branch
+    }
+
+    private final Predictor predictor;
+    private final boolean forwarding;
+    private final byte[] history = new byte[PREDICTOR_ENTRIES]; // Predictor state, indexed by PC
+
+    // Cycle in which the previous instruction was in EX, and extra cycles before the next one may
+    // enter EX (a redirect); per register, the first cycle its new value can be used in EX
+    private long lastExecute;
+    private int bubbles;
+    private final long[] ready = new long[32];
+    private final boolean[] loaded = new boolean[32]; // Register's pending value comes from a load
+    private long needed;        // Scratch for record(): EX cycle the operands allow
+    private boolean neededLoad; // ... and whether a load result decided it
+
+    private long instructions;
+    private long dataStalls, loadUseStalls, mispredictCycles, jumpCycles;
+    private long branches, mispredictions;
+
+    // Per-PC counter columns: executions and the stall cycles charged to that instruction
+    private static final int HITS = 0, DATA_STALLS = 1, CONTROL_STALLS = 2, MISPREDICTIONS = 3;
+    private final PcCounters counters = new PcCounters(4);
+
+    public PipelineModel(Predictor predictor, boolean forwarding) {
+        this.predictor = predictor;
+        this.forwarding = forwarding;
+    }
+
+    // Start timing from an empty pipeline, with per-PC counters for textWords instructions
+    void reset(int textWords) {
+        counters.reset(textWords);
+        Arrays.fill(history, (byte) (predictor == Predictor.TWO_BIT ? 1 : 0)); // Weakly / not taken
+        Arrays.fill(ready, 0);
+        Arrays.fill(loaded, false);
+        lastExecute = 2; // The first instruction reaches EX in cycle 3
+        bubbles = 0;
+        instructions = dataStalls = loadUseStalls = mispredictCycles = jumpCycles = branches = mispredictions = 0;
+    }
+
+    // Time one executed instruction; nextPc tells whether a branch was taken
+    void record(int pc, int op, int rd, int rs1, int rs2, int imm, int nextPc) {
+        instructions++;
+        int slot = counters.slot(pc);
+        boolean inText = slot >= 0;
+        if (inText) counters.add(HITS, slot, 1);
+
+        // Earliest EX cycle, then wait for operands still in flight
+        long execute = lastExecute + 1 + bubbles;
+        bubbles = 0;
+        needed = execute;
+        neededLoad = false;
+        switch (op) {
+            case RiscVInterpreter.OP_ADD:
+            case RiscVInterpreter.OP_SUB:
+            case RiscVInterpreter.OP_BEQ:
+            case RiscVInterpreter.OP_BNE:
+            case RiscVInterpreter.OP_BLT:
+                need(rs1, 0);
+                need(rs2, 0);
+                break;
+            case RiscVInterpreter.OP_ADDI:
+            case RiscVInterpreter.OP_LW:
+                need(rs1, 0);
+                break;
+            case RiscVInterpreter.OP_SW:
+                need(rs1, 0);
+                need(rs2, forwarding ? 1 : 0); // With forwarding the data is only needed in MEM
+                break;
+            case RiscVInterpreter.OP_ECALL: // Timed as one instruction reading the call number and arguments
+                need(17, 0);
+                need(10, 0);
+                need(11, 0);
+                need(12, 0);
+                break;
+            default:
+                break;
+        }
+        if (needed > execute) {
+            long stall = needed - execute;
+            dataStalls += stall;
+            if (forwarding && neededLoad) loadUseStalls += stall;
+            if (inText) counters.add(DATA_STALLS, slot, stall);
+            execute = needed;
+        }
+        lastExecute = execute;
+
+        // Results: from EX (or MEM for loads) with forwarding, otherwise after write-back
+        boolean writes = op == RiscVInterpreter.OP_JAL || op != RiscVInterpreter.OP_SW && !RiscVInterpreter.endsBlock(op);
+        if (writes && rd != 0) {
+            boolean load = op == RiscVInterpreter.OP_LW;
+            ready[rd] = !forwarding ? execute + 3 : load ? execute + 2 : execute + 1;
+            loaded[rd] = load;
+        }
+
+        // Control flow
+        if (op == RiscVInterpreter.OP_JAL) {
+            bubbles = JUMP_PENALTY;
+            jumpCycles += JUMP_PENALTY;
+            if (inText) counters.add(CONTROL_STALLS, slot, JUMP_PENALTY);
+        } else if (RiscVInterpreter.endsBlock(op)) {
+            branches++;
+            boolean taken = nextPc != pc + 4;
+            if (predict(pc, imm, taken) != taken) {
+                mispredictions++;
+                bubbles = MISPREDICT_PENALTY;
+                mispredictCycles += MISPREDICT_PENALTY;
+                if (inText) {
+                    counters.add(CONTROL_STALLS, slot, MISPREDICT_PENALTY);
+                    counters.add(MISPREDICTIONS, slot, 1);
+                }
+            }
+        }
+    }
+
+    // Operand reg is needed slack cycles after EX: push the EX cycle back until it is ready
+    private void need(int reg, int slack) {
+        long at = ready[reg] - slack;
+        if (reg != 0 && at > needed) {
+            needed = at;
+            neededLoad = loaded[reg];
+        }
+    }
+
+    // Predict the branch at pc (offset imm), then train the predictor with the actual outcome
+    private boolean predict(int pc, int imm, boolean taken) {
+        int index = (pc >>> 2) & (PREDICTOR_ENTRIES - 1);
+        switch (predictor) {
+            case ONE_BIT: {
+                boolean prediction = history[index] != 0;
+                history[index] = (byte) (taken ? 1 : 0);
+                return prediction;
+            }
+            case TWO_BIT: {
+                boolean prediction = history[index] >= 2;
+                history[index] = (byte) (taken ? Math.min(3, history[index] + 1) : Math.max(0, history[index] - 1));
+                return prediction;
+            }
+            default:
+                return imm < 0; // Loops branch backwards
+        }
+    }
+
+    // Total cycles: the last instruction still goes through MEM and WB, and its redirect (if any)
+    // is charged so that cycles = instructions + 4 (fill) + stall cycles
+    public long cycles() {
+        return instructions == 0 ? 0 : lastExecute + bubbles + 2;
+    }
+
+    public long instructions() {
+        return instructions;
+    }
+
+    public double cpi() {
+        return instructions == 0 ? 0 : (double) cycles() / instructions;
+    }
+
+    // Print cycles, CPI, the stall breakdown and the instructions that stalled most
+    public void report(PrintStream out, GuestProfiler.Symbols symbols, int top) {
+        out.printf("Pipeline: %s predictor, forwarding %s%n", predictor, forwarding ? "on" : "off");
+        out.printf("  %d cycles, %d instructions, CPI %.3f%n", cycles(), instructions, cpi());
+        out.printf("  data stalls       %10d (load-use %d)%n", dataStalls, loadUseStalls);
+        out.printf("  mispredict cycles %10d (%d of %d branches mispredicted, %.2f%%)%n",
+                mispredictCycles, mispredictions, branches, branches == 0 ? 0 : 100.0 * mispredictions / branches);
+        out.printf("  jump cycles       %10d%n", jumpCycles);
+
+        out.println("Stalls by instruction:");
+        Integer[] order = counters.hottest(DATA_STALLS, CONTROL_STALLS);
+        for (int i = 0; i < Math.min(top, order.length); i++) {
+            int slot = order[i];
+            if (counters.sum(slot, DATA_STALLS, CONTROL_STALLS) == 0) break;
+            int pc = PcCounters.pc(slot);
+            out.printf("  0x%04x %10d runs  data %8d  control %8d (%d mispredicted)  %s%n", pc, counters.get(HITS, slot),
+                    counters.get(DATA_STALLS, slot), counters.get(CONTROL_STALLS, slot), counters.get(MISPREDICTIONS, slot),
+                    symbols.describe(pc));
+        }
+    }
+
+    // Run an ELF file through the timing model and print the report
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java PipelineModel program.elf [static|1bit|2bit] [noforward]");
+            System.exit(1);
+        }
+        Predictor predictor = Predictor.TWO_BIT;
+        boolean forwarding = true;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "static": predictor = Predictor.STATIC; break;
+                case "1bit": predictor = Predictor.ONE_BIT; break;
+                case "2bit": predictor = Predictor.TWO_BIT; break;
+                case "noforward": forwarding = false; break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        RiscVInterpreter rv = new RiscVInterpreter();
+        rv.loadElf(args[0]);
+        PipelineModel model = new PipelineModel(predictor, forwarding);
+        rv.setPipelineModel(model);
+        rv.run();
+        model.report(System.out, GuestProfiler.Symbols.load(Paths.get(RiscVAssembler.symbolFilePath(args[0]))), 10);
+    }
+}
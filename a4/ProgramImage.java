@@ -0,0 +1,258 @@
+// A loaded program: entry point plus the .text and .data contents laid out as guest pages.
+// ELF files are memory-mapped, validated and copied once, straight from the mapping into the
+// image's read-only pages; the mapping is not kept, so a file rewritten or truncated later (even
+// by writeElf on the image's own path) cannot fault the JVM through a cached image. Images are
+// cached by SHA-256 of the file contents, so every interpreter running the same program shares
+// the same pages (copied on first write), and a file rewritten in place is never mistaken for
+// the old one, however quickly it changed. Images built by the assembler live only in memory
+// until written out with writeElf.
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class ProgramImage {
+    // Simplified ELF header: magic, file size, entry, .text offset/size, .data offset/size, .data
+    // address (0 = DATA_BASE, as in files written before .data could move)
+    static final int HEADER_SIZE = 32;
+    static final int ELF_MAGIC = 0x464C457F; // 0x7F "ELF"
+
+    // Images already read, keyed by SHA-256 of the whole file
+    private static final Map<String, SoftReference<ProgramImage>> CACHE = new ConcurrentHashMap<>();
+
+    final int entry;    // Initial PC
+    final int textSize; // Size of .text in bytes (loaded at TEXT_BASE)
+    final int dataSize; // Size of .data in bytes (loaded at dataAddress)
+    final int dataAddress;
+
+    private final Map<String, Integer> labels;   // Label -> address, in order of appearance
+
+    // Read-only page contents (little-endian), indexed in step with pageNumbers (ascending); the
+    // only copy of the sections, shared by every install
+    private final int[] pageNumbers;
+    private final ByteBuffer[] pages;
+
+    // Lay text out at TEXT_BASE and data at dataAddress in page-sized buffers
+    private ProgramImage(int entry, ByteBuffer text, int dataAddress, ByteBuffer data, Map<String, Integer> labels) {
+        this.entry = entry;
+        this.textSize = text.remaining();
+        this.dataSize = data.remaining();
+        this.dataAddress = dataAddress;
+        this.labels = labels;
+        TreeMap<Integer, ByteBuffer> layout = new TreeMap<>();
+        copyToPages(layout, RiscVInterpreter.TEXT_BASE, text);
+        copyToPages(layout, dataAddress, data);
+        pageNumbers = new int[layout.size()];
+        pages = new ByteBuffer[layout.size()];
+        int i = 0;
+        for (Map.Entry<Integer, ByteBuffer> page : layout.entrySet()) {
+            pageNumbers[i] = page.getKey();
+            pages[i++] = page.getValue().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    // Image of assembled code: textWords instructions and dataBytes bytes of data (both copied),
+    // entered at TEXT_BASE, with .data where dataAddressFor puts it. labels maps label names to byte
+    // offsets in .text.
+    static ProgramImage of(int[] text, int textWords, byte[] data, int dataBytes, Map<String, Integer> labels) {
+        ByteBuffer textBuffer = ByteBuffer.allocate(textWords * 4).order(ByteOrder.LITTLE_ENDIAN);
+        textBuffer.asIntBuffer().put(text, 0, textWords);
+        ByteBuffer dataBuffer = ByteBuffer.wrap(Arrays.copyOf(data, dataBytes));
+        Map<String, Integer> addresses = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> label : labels.entrySet()) {
+            addresses.put(label.getKey(), RiscVInterpreter.TEXT_BASE + label.getValue());
+        }
+        return new ProgramImage(RiscVInterpreter.TEXT_BASE, textBuffer, dataAddressFor(textWords * 4), dataBuffer,
+                Collections.unmodifiableMap(addresses));
+    }
+
+    // Where assembled programs put .data: at DATA_BASE, unless .text runs past it, in which case
+    // right after .text (so programs of any size load; only those must find .data there)
+    static int dataAddressFor(int textSize) {
+        return Math.max(RiscVInterpreter.DATA_BASE, RiscVInterpreter.TEXT_BASE + textSize);
+    }
+
+    public int entry() {
+        return entry;
+    }
+
+    public int textSize() {
+        return textSize;
+    }
+
+    public int dataSize() {
+        return dataSize;
+    }
+
+    public int dataAddress() {
+        return dataAddress;
+    }
+
+    // Instruction word at a byte offset into .text
+    public int textWord(int offset) {
+        int addr = RiscVInterpreter.TEXT_BASE + offset;
+        return page(addr).getInt(addr & GuestMemory.PAGE_MASK);
+    }
+
+    // Byte at an offset into .data
+    public byte dataByte(int offset) {
+        int addr = dataAddress + offset;
+        return page(addr).get(addr & GuestMemory.PAGE_MASK);
+    }
+
+    // The page holding an address inside .text or .data
+    private ByteBuffer page(int addr) {
+        return pages[Arrays.binarySearch(pageNumbers, addr >>> GuestMemory.PAGE_SHIFT)];
+    }
+
+    // Label name -> address (empty for images read from ELF files, which carry no symbols)
+    public Map<String, Integer> labels() {
+        return labels;
+    }
+
+    // Map an ELF file and read it, or reuse the image of an earlier file with the same contents
+    public static ProgramImage map(String filePath) throws IOException {
+        Path path = Paths.get(filePath);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a valid ELF file: " + path + " is " + size + " bytes");
+            }
+            ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            MessageDigest md = sha256();
+            md.update(file.duplicate());
+            String key = HexFormat.of().formatHex(md.digest());
+            SoftReference<ProgramImage> cached = CACHE.get(key);
+            ProgramImage image = cached == null ? null : cached.get();
+            if (image == null) {
+                image = read(file);
+                CACHE.put(key, new SoftReference<>(image));
+            }
+            return image;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Check every header field against the mapped size and lay the sections out from the mapping
+    private static ProgramImage read(ByteBuffer file) throws IOException {
+        long size = file.capacity();
+        if (file.getInt(0) != ELF_MAGIC) {
+            throw new IOException("Not a valid ELF file: bad magic number");
+        }
+        int fileSize = file.getInt(4);      // Total file size
+        int entry = file.getInt(8);         // Entry point (initial PC)
+        int textOffset = file.getInt(12);   // Offset to .text section
+        int textSize = file.getInt(16);     // Size of .text section
+        int dataOffset = file.getInt(20);   // Offset to .data section
+        int dataSize = file.getInt(24);     // Size of .data section
+        int dataAddress = file.getInt(28);  // Load address of .data (0 = DATA_BASE)
+        if (dataAddress == 0) dataAddress = RiscVInterpreter.DATA_BASE;
+
+        if (fileSize != size) {
+            throw new IOException("Not a valid ELF file: header says " + fileSize + " bytes, file has " + size);
+        }
+        checkSection(".text", textOffset, textSize, size);
+        checkSection(".data", dataOffset, dataSize, size);
+        if ((textSize & 3) != 0) {
+            throw new IOException("Not a valid ELF file: .text size " + textSize + " is not a whole number of instructions");
+        }
+        long textEnd = RiscVInterpreter.TEXT_BASE + (long) textSize;
+        long dataStart = dataAddress & 0xFFFFFFFFL, dataEnd = dataStart + dataSize;
+        if (dataEnd > 1L << 32 || (dataSize > 0 && dataStart < textEnd && dataEnd > RiscVInterpreter.TEXT_BASE)) {
+            throw new IOException("Not a valid ELF file: .data (0x" + Integer.toHexString(dataAddress) + ", " +
+                    dataSize + " bytes) overlaps .text or runs past the end of the address space");
+        }
+        if ((entry & 3) != 0 || entry < RiscVInterpreter.TEXT_BASE || entry >= RiscVInterpreter.TEXT_BASE + textSize) {
+            throw new IOException("Not a valid ELF file: entry point 0x" + Integer.toHexString(entry) + " is outside .text");
+        }
+        return new ProgramImage(entry, file.slice(textOffset, textSize), dataAddress, file.slice(dataOffset, dataSize),
+                Collections.emptyMap());
+    }
+
+    private static void checkSection(String name, int offset, int size, long fileSize) throws IOException {
+        if (offset < HEADER_SIZE || size < 0 || (long) offset + size > fileSize) {
+            throw new IOException("Not a valid ELF file: " + name + " (offset " + offset + ", size " + size +
+                    ") is outside the " + fileSize + "-byte file");
+        }
+    }
+
+    // Copy a section into the page-sized buffers that cover it
+    private static void copyToPages(TreeMap<Integer, ByteBuffer> layout, int addr, ByteBuffer section) {
+        int offset = 0, length = section.remaining();
+        while (offset < length) {
+            int pageNumber = (addr + offset) >>> GuestMemory.PAGE_SHIFT;
+            int inPage = (addr + offset) & GuestMemory.PAGE_MASK;
+            int chunk = Math.min(length - offset, GuestMemory.PAGE_SIZE - inPage);
+            ByteBuffer page = layout.computeIfAbsent(pageNumber, n -> ByteBuffer.allocate(GuestMemory.PAGE_SIZE));
+            page.put(inPage, section, section.position() + offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    // Install the image's pages into guest memory; they stay shared until the guest writes them
+    void installInto(GuestMemory memory) {
+        for (int i = 0; i < pages.length; i++) {
+            memory.mapShared(pageNumbers[i] << GuestMemory.PAGE_SHIFT, pages[i]);
+        }
+    }
+
+    // Serialize the image as a simplified ELF file: header, .text and .data in one gathering write
+    public void writeElf(Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(ELF_MAGIC)                      // Magic
+              .putInt(HEADER_SIZE + textSize + dataSize) // File size
+              .putInt(entry)                          // Entry point
+              .putInt(HEADER_SIZE)                    // .text offset
+              .putInt(textSize)                       // .text size
+              .putInt(HEADER_SIZE + textSize)         // .data offset
+              .putInt(dataSize)                       // .data size
+              .putInt(dataAddress == RiscVInterpreter.DATA_BASE ? 0 : dataAddress) // .data address
+              .flip();
+        List<ByteBuffer> parts = new ArrayList<>();
+        parts.add(header);
+        addPageSlices(parts, RiscVInterpreter.TEXT_BASE, textSize);
+        addPageSlices(parts, dataAddress, dataSize);
+        ByteBuffer[] buffers = parts.toArray(new ByteBuffer[0]);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long remaining = HEADER_SIZE + textSize + dataSize;
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+    }
+
+    // Views of the pages covering [addr, addr + length), in address order
+    private void addPageSlices(List<ByteBuffer> out, int addr, int length) {
+        int offset = 0;
+        while (offset < length) {
+            int inPage = (addr + offset) & GuestMemory.PAGE_MASK;
+            int chunk = Math.min(length - offset, GuestMemory.PAGE_SIZE - inPage);
+            out.add(page(addr + offset).slice(inPage, chunk));
+            offset += chunk;
+        }
+    }
+}
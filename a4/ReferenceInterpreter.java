@@ -0,0 +1,157 @@
+// Reference semantics for LockstepVerifier: a deliberately plain interpreter with none of
+// RiscVInterpreter's machinery (no decode cache, dispatch table, compiled blocks or copy-on-write
+// pages). Every step fetches the word from memory, takes the fields straight out of it and
+// executes it by opcode; memory is a map of 4 KB byte arrays. Faults, exits and system calls
+// behave as RiscVInterpreter documents them, with no host I/O: reads see end of input and writes
+// are accepted and dropped.
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+final class ReferenceInterpreter {
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    final int[] registers = new int[32];
+    int pc;
+    long instret;
+    RiscVInterpreter.StopReason stopReason; // null while running
+    String stopMessage;
+    int exitCode;
+
+    private final Map<Integer, byte[]> pages = new HashMap<>(); // Page number -> contents
+    private final Set<Integer> executable = new HashSet<>();    // Pages holding .text
+    private RiscVInterpreter.StoreListener storeListener;
+
+    ReferenceInterpreter(ProgramImage image) {
+        for (int offset = 0; offset < image.textSize(); offset += 4) {
+            store(RiscVInterpreter.TEXT_BASE + offset, image.textWord(offset), 4);
+        }
+        for (int offset = 0; offset < image.dataSize(); offset++) {
+            store(image.dataAddress() + offset, image.dataByte(offset), 1);
+        }
+        for (int addr = RiscVInterpreter.TEXT_BASE; addr < RiscVInterpreter.TEXT_BASE + image.textSize(); addr += PAGE_SIZE) {
+            executable.add(addr >>> PAGE_SHIFT);
+        }
+        executable.add((RiscVInterpreter.TEXT_BASE + image.textSize() - 1) >>> PAGE_SHIFT);
+        pc = image.entry();
+    }
+
+    void setStoreListener(RiscVInterpreter.StoreListener listener) {
+        storeListener = listener;
+    }
+
+    // Execute one instruction; false once the program has stopped
+    boolean step() {
+        int at = pc;
+        pc += 4;
+        if ((at & 3) != 0) return fault("Misaligned 4-byte access", at);
+        if (!executable.contains(at >>> PAGE_SHIFT)) return fault("Instruction fetch from non-executable page", at);
+        int instr = load(at, 4);
+
+        int opcode = instr & 0x7F;
+        int rd = (instr >> 7) & 0x1F;
+        int funct3 = (instr >> 12) & 0x7;
+        int rs1 = (instr >> 15) & 0x1F;
+        int rs2 = (instr >> 20) & 0x1F;
+        int funct7 = instr >>> 25;
+        int a = registers[rs1], b = registers[rs2];
+
+        if (opcode == 0x33 && funct3 == 0 && funct7 == 0x00) {        // add
+            write(rd, a + b);
+        } else if (opcode == 0x33 && funct3 == 0 && funct7 == 0x20) { // sub
+            write(rd, a - b);
+        } else if (opcode == 0x13 && funct3 == 0) {                   // addi
+            write(rd, a + (instr >> 20));
+        } else if (opcode == 0x03 && funct3 == 2) {                   // lw
+            int addr = a + (instr >> 20);
+            if ((addr & 3) != 0) return fault("Misaligned 4-byte access", addr);
+            write(rd, load(addr, 4));
+        } else if (opcode == 0x23 && funct3 == 2) {                   // sw
+            int addr = a + ((instr >> 25) << 5 | rd);
+            if ((addr & 3) != 0) return fault("Misaligned 4-byte access", addr);
+            store(addr, b, 4);
+            if (storeListener != null) storeListener.stored(addr, 4);
+        } else if (opcode == 0x63 && (funct3 == 0 || funct3 == 1 || funct3 == 4)) { // beq, bne, blt
+            int offset = (instr >> 31) << 12 | ((instr >> 7) & 1) << 11 | ((instr >> 25) & 0x3F) << 5 | ((instr >> 8) & 0xF) << 1;
+            boolean taken = funct3 == 0 ? a == b : funct3 == 1 ? a != b : a < b;
+            if (taken) pc += offset; // Relative to the next instruction, as the assembler encodes it
+        } else if (opcode == 0x6F) {                                  // jal
+            int offset = (instr >> 31) << 20 | ((instr >> 12) & 0xFF) << 12 | ((instr >> 20) & 1) << 11 | ((instr >> 21) & 0x3FF) << 1;
+            int link = pc;
+            pc += offset;
+            write(rd, link);
+            if (rd == 0 && offset == 0) {
+                instret++;
+                return stop(RiscVInterpreter.StopReason.EXIT, null);
+            }
+        } else if (instr == 0x00000073) {                             // ecall
+            systemCall();
+            if (stopReason != null) {
+                instret++;
+                return false;
+            }
+        } else {
+            return stop(RiscVInterpreter.StopReason.INVALID_INSTRUCTION,
+                    "Invalid instruction at PC=0x" + Integer.toHexString(at) + ": 0x" + Integer.toHexString(instr));
+        }
+        instret++;
+        return true;
+    }
+
+    private void systemCall() {
+        int a0 = registers[10], a2 = registers[12];
+        switch (registers[17]) {
+            case RiscVInterpreter.SYS_READ:
+                write(10, a0 != HostIO.STDIN ? -HostIO.EBADF : a2 < 0 ? -HostIO.EINVAL : 0); // End of input
+                break;
+            case RiscVInterpreter.SYS_WRITE:
+                write(10, a0 != HostIO.STDOUT && a0 != HostIO.STDERR ? -HostIO.EBADF : a2 < 0 ? -HostIO.EINVAL : a2);
+                break;
+            case RiscVInterpreter.SYS_EXIT:
+                exitCode = a0;
+                stop(RiscVInterpreter.StopReason.EXIT, null);
+                break;
+            case RiscVInterpreter.SYS_COUNTER:
+                long value = a0 == 0 ? instret : -1; // No pipeline model: no cycle count
+                write(10, (int) value);
+                write(11, (int) (value >>> 32));
+                break;
+            default:
+                write(10, -38); // ENOSYS
+        }
+    }
+
+    private void write(int rd, int value) {
+        if (rd != 0) registers[rd] = value;
+    }
+
+    private boolean stop(RiscVInterpreter.StopReason reason, String message) {
+        stopReason = reason;
+        stopMessage = message;
+        return false;
+    }
+
+    private boolean fault(String message, int addr) {
+        return stop(RiscVInterpreter.StopReason.MEMORY_FAULT, message + " at 0x" + Integer.toHexString(addr));
+    }
+
+    // Little-endian load of size bytes; memory never written reads as zero
+    int load(int addr, int size) {
+        int value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            byte[] page = pages.get((addr + i) >>> PAGE_SHIFT);
+            value = value << 8 | (page == null ? 0 : page[(addr + i) & (PAGE_SIZE - 1)] & 0xFF);
+        }
+        return value;
+    }
+
+    private void store(int addr, int value, int size) {
+        for (int i = 0; i < size; i++) {
+            byte[] page = pages.computeIfAbsent((addr + i) >>> PAGE_SHIFT, n -> new byte[PAGE_SIZE]);
+            page[(addr + i) & (PAGE_SIZE - 1)] = (byte) (value >> (8 * i));
+        }
+    }
+}
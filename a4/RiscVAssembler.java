@@ -1,251 +1,642 @@
-// A simple RISV-V assembler using a simplified ELF-like binary file format
-
-import java.io.*;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-public class RiscVAssembler {
-    // Instruction encoding constants
-    private static final int OPCODE_LW = 0x03;
-    private static final int OPCODE_SW = 0x23;
-    private static final int OPCODE_ADDI = 0x13;
-    private static final int OPCODE_ADD_SUB = 0x33;
-    private static final int OPCODE_BEQ_BLT = 0x63;
-    private static final int OPCODE_JAL = 0x6F;
-
-    private List<Integer> textSection = new ArrayList<>(); // List of 32-bit instructions
-    private List<Byte> dataSection = new ArrayList<>();    // Raw bytes for .data
-    private Map<String, Integer> labels = new HashMap<>(); // Label -> byte offset in .text
-
-    // Assemble an .asm file into an ELF binary
-    public void assemble(String asmFilePath, String elfFilePath) throws Exception {
-
-        System.out.println("Assembling " + asmFilePath + " into " + elfFilePath);
-        // First Pass: Collect labels and count instructions
-        BufferedReader reader = new BufferedReader(new FileReader(asmFilePath));
-        String line;
-        boolean inTextSection = false;
-        int instrCount = 0; // Offset in .text section (in 32-bit words)
-
-        while ((line = reader.readLine()) != null) {
-            line = line.trim().split("#")[0].trim(); // Remove comments
-            if (line.isEmpty()) continue;
-
-            if (line.equals(".text")) {
-                inTextSection = true;
-                continue;
-            } else if (line.equals(".data")) {
-                inTextSection = false;
-                continue;
-            }
-
-            if (inTextSection) {
-                if (line.endsWith(":")) {
-                    String label = line.substring(0, line.length() - 1);
-                    labels.put(label, instrCount * 4); // Byte offset
-                } else {
-                    instrCount++; // Count each instruction
-                }
-            }
-        }
-        reader.close();
-
-        // Second Pass: Encode instructions and data
-        reader = new BufferedReader(new FileReader(asmFilePath));
-        inTextSection = false;
-        instrCount = 0;
-
-        while ((line = reader.readLine()) != null) {
-            line = line.trim().split("#")[0].trim(); // Remove comments
-            if (line.isEmpty()) continue;
-
-            if (line.equals(".text")) {
-                inTextSection = true;
-                continue;
-            } else if (line.equals(".data")) {
-                inTextSection = false;
-                continue;
-            }
-
-            if (inTextSection) {
-                if (!line.endsWith(":")) { // Skip labels in second pass
-                    System.out.println("Reading instruction: " + line);
-                    int instr = encodeInstruction(line, instrCount);
-                    textSection.add(instr);
-                    instrCount++;
-                }
-            } else {
-                if (line.startsWith(".word")) {
-                    String valueStr = line.split("\\s+")[1];
-                    int value = parseNumber(valueStr);
-                    ByteBuffer bb = ByteBuffer.allocate(4).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-                    bb.putInt(value);
-                    for (byte b : bb.array()) dataSection.add(b);
-                }
-            }
-        }
-        reader.close();
-
-        // Print labels
-        // TODO: display in order of appearance in the file
-        System.out.println("Labels:");
-        for (Map.Entry<String, Integer> entry : labels.entrySet()) {
-            System.out.println(entry.getKey()+" : "+entry.getValue());
-        }
-
-        // Write ELF file
-        writeElfFile(elfFilePath);
-    }
-
-    // Encode a single assembly instruction into a 32-bit integer
-    private int encodeInstruction(String line, int instrCount) {
-        String[] parts = line.trim().split("[\\s,()]+");
-        String mnemonic = parts[0].toLowerCase();
-        int rd, rs1, rs2, imm;
-
-        switch (mnemonic) {
-            case "lw": // lw rd, imm(rs1)
-                rd = parseReg(parts[1]);
-                imm = parseNumber(parts[2]);
-                rs1 = parseReg(parts[3]);
-                // I-type encoding: imm[11:0] rs1 rd opcode
-                return (imm << 20) | (rs1 << 15) | (0x2 << 12) | (rd << 7) | OPCODE_LW;
-
-            case "sw": // sw rs2, imm(rs1)
-                rs2 = parseReg(parts[1]);
-                imm = parseNumber(parts[2]);
-                rs1 = parseReg(parts[3]);
-                // S-type encoding: imm[11:5] rs2 rs1 imm[4:0] opcode
-                return ((imm >> 5) << 25) | (rs2 << 20) | (rs1 << 15) | (0x2 << 12) | ((imm & 0x1F) << 7) | OPCODE_SW;
-
-            case "add": // add rd, rs1, rs2
-                rd = parseReg(parts[1]);
-                rs1 = parseReg(parts[2]);
-                rs2 = parseReg(parts[3]);
-                // R-type encoding: 0x33 rs2 rs1 rd opcode
-                return (rs2 << 20) | (rs1 << 15) | (rd << 7) | OPCODE_ADD_SUB;
-
-            case "sub": // sub rd, rs1, rs2
-                rd = parseReg(parts[1]);
-                rs1 = parseReg(parts[2]);
-                rs2 = parseReg(parts[3]);
-                // R-type encoding: 0x20 rs2 rs1 rd opcode
-                return (0x20 << 25) | (rs2 << 20) | (rs1 << 15) | (rd << 7) | OPCODE_ADD_SUB;
-
-            case "addi": // addi rd, rs1, imm
-                rd = parseReg(parts[1]);
-                rs1 = parseReg(parts[2]);
-                imm = parseNumber(parts[3]);
-                // I-type encoding: imm[11:0] rs1 rd opcode
-                return (imm << 20) | (rs1 << 15) | (rd << 7) | OPCODE_ADDI;
-
-            case "beq": // beq rs1, rs2, label/imm
-                rs1 = parseReg(parts[1]);
-                rs2 = parseReg(parts[2]);
-                imm = parseOffset(parts[3], instrCount);
-                // SB-type encoding: imm[12] imm[10:5] rs2 rs1 0x1 imm[4:1] imm[11] opcode
-                return ((imm >> 12) << 31) | (((imm >> 5) & 0x3F) << 25) | (rs2 << 20) |
-                       (rs1 << 15) | (((imm >> 1) & 0xF) << 8) | (((imm >> 11) & 0x1) << 7) | OPCODE_BEQ_BLT;
-
-            case "blt": // blt rs1, rs2, label/imm
-                rs1 = parseReg(parts[1]);
-                rs2 = parseReg(parts[2]);
-                imm = parseOffset(parts[3], instrCount);
-                // SB-type encoding: imm[12] imm[10:5] rs2 rs1 imm[4:1] imm[11] opcode
-                return ((imm >> 12) << 31) | (((imm >> 5) & 0x3F) << 25) | (rs2 << 20) |
-                       (rs1 << 15) | (0x4 << 12) | (((imm >> 1) & 0xF) << 8) | (((imm >> 11) & 0x1) << 7) | OPCODE_BEQ_BLT;
-
-            case "bne": // bne rs1, rs2, label/imm
-                rs1 = parseReg(parts[1]);
-                rs2 = parseReg(parts[2]);
-                imm = parseOffset(parts[3], instrCount);
-                // SB-type encoding: imm[12] imm[10:5] rs2 rs1 0x1 imm[4:1] imm[11] opcode
-                return ((imm >> 12) << 31) | (((imm >> 5) & 0x3F) << 25) | (rs2 << 20) |
-                       (rs1 << 15) | (0x1 << 12) | (((imm >> 1) & 0xF) << 8) | (((imm >> 11) & 0x1) << 7) | OPCODE_BEQ_BLT;
-
-            case "jal": // jal rd, offset
-                rd = parseReg(parts[1]);
-                imm = parseOffset(parts[2], instrCount);
-                // UJ-type encoding: imm[20] imm[10:1] imm[11] imm[19:12] rd opcode
-                return ((imm >> 20) << 31) | (((imm >> 1) & 0x3FF) << 21) | (((imm >> 11) & 0x1) << 20) |
-                (((imm >> 12) & 0xFF) << 12) | (rd << 7) | OPCODE_JAL;
-            default:
-                throw new IllegalArgumentException("Unknown instruction: " + mnemonic);
-        }
-    }
-
-    // Parse register name (e.g., "x5" -> 5)
-    private int parseReg(String reg) {
-        return Integer.parseInt(reg.substring(1)); // Strip "x" and convert to int
-    }
-
-    // Parse a number (decimal or hexadecimal with 0x prefix)
-    private int parseNumber(String value) {
-        if (value.startsWith("0x") || value.startsWith("0X")) {
-            return Integer.parseInt(value.substring(2), 16); // Parse hex without "0x"
-        }
-        return Integer.parseInt(value); // Parse decimal
-    }
-
-    // Parse immediate or label offset (in bytes, adjusted for current PC)
-    private int parseOffset(String value, int instrCount) {
-        try {
-            return parseNumber(value); // Direct immediate (decimal or hex)
-        } catch (NumberFormatException e) {
-            // Label: calculate offset from current position
-            Integer target = labels.get(value);
-            if (target == null) {
-                throw new IllegalArgumentException("Undefined label: " + value);
-            }
-            int current = instrCount * 4; // Current byte offset
-            return target - current - 4;  // Offset relative to next instruction
-        }
-    }
-
-    // Write the assembled ELF file
-    private void writeElfFile(String elfFilePath) throws IOException {
-        FileOutputStream fos = new FileOutputStream(elfFilePath);
-        ByteBuffer bb = ByteBuffer.allocate(4).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-
-        // Header (32 bytes)
-        fos.write(0x7F); fos.write('E'); fos.write('L'); fos.write('F'); // Magic
-        int fileSize = 0x20 + (textSection.size() * 4) + dataSection.size();
-        bb.putInt(fileSize); fos.write(bb.array()); bb.clear();         // File size
-        bb.putInt(0x0040); fos.write(bb.array()); bb.clear();           // Entry point
-        bb.putInt(0x20); fos.write(bb.array()); bb.clear();               // .text offset
-        bb.putInt(textSection.size() * 4); fos.write(bb.array()); bb.clear(); // .text size
-        bb.putInt(0x20 + textSection.size() * 4); fos.write(bb.array()); bb.clear(); // .data offset
-        bb.putInt(dataSection.size()); fos.write(bb.array()); bb.clear(); // .data size
-        fos.write(new byte[]{0, 0, 0, 0});                             // Reserved
-
-        // .text section
-        for (int instr : textSection) {
-            System.out.printf("Writing instruction: 0x%08x%n", instr);
-            bb.putInt(instr); 
-            fos.write(bb.array()); 
-            bb.clear();
-        }
-
-        // .data section
-        for (byte b : dataSection) 
-            fos.write(b);
-
-        fos.close();
-        System.out.println("ELF file written: " + elfFilePath);
-    }
-
-    // Main method to test the assembler
-    // TODO: Use command-line arguments for input/output files
-    public static void main(String[] args) throws Exception {
-        RiscVAssembler assembler = new RiscVAssembler();
-
-        // Assemble arithmetic example
-        assembler.assemble("arithmetic.asm", "arithmetic.elf");
-
-        // Assemble bubble sort example
-        assembler.assemble("bubble_sort.asm", "bubble_sort.elf");
-    }
+// A simple RISV-V assembler using a simplified ELF-like binary file format.
+// Assembles in one pass: a hand-written tokenizer feeds the encoder line by line, output goes into
+// growable int[]/byte[] buffers, and branches to labels not seen yet are backpatched at the end.
+// The result is an in-memory ProgramImage; writing the ELF file is optional.
+// With setOptimize(true) instructions are collected into a list first so AsmOptimizer can rewrite
+// them and relax branches whose labels are out of range before anything is encoded.
+// assembleObject assembles one file of a multi-file program into an ObjectFile instead, leaving
+// branches to labels it does not define for the Linker.
+
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RiscVAssembler {
+    // Instruction encoding constants
+    private static final int OPCODE_LW = 0x03;
+    private static final int OPCODE_SW = 0x23;
+    private static final int OPCODE_ADDI = 0x13;
+    private static final int OPCODE_ADD_SUB = 0x33;
+    private static final int OPCODE_BEQ_BLT = 0x63;
+    private static final int OPCODE_JAL = 0x6F;
+    private static final int OPCODE_SYSTEM = 0x73;
+
+    // Mnemonics, indexed by the IDs below
+    static final String[] MNEMONICS = {"lw", "sw", "add", "sub", "addi", "beq", "blt", "bne", "jal", "ecall"};
+    static final int LW = 0, SW = 1, ADD = 2, SUB = 3, ADDI = 4, BEQ = 5, BLT = 6, BNE = 7, JAL = 8, ECALL = 9;
+
+    private int[] textSection = new int[256];   // 32-bit instructions
+    private int textCount;                      // Instructions in textSection
+    private byte[] dataSection = new byte[256]; // Raw bytes for .data
+    private int dataCount;                      // Bytes in dataSection
+    private Map<String, Integer> labels = new LinkedHashMap<>(); // Label -> byte offset in .text, in order of appearance
+
+    // Branches and jumps to labels not defined yet: instruction index, label and source line,
+    // patched once the whole input has been read
+    private int[] fixupIndex = new int[64];
+    private String[] fixupLabel = new String[64];
+    private int[] fixupLine = new int[64];
+    private int fixupCount;
+
+    private int[] lineNumbers = new int[256];       // Source line of each instruction
+    private String[] sourceLines = new String[256]; // Source text of each instruction (only with symbols on)
+
+    private boolean verbose;        // Print each line, label and instruction as it is assembled
+    private boolean symbols = true; // Keep source lines and write the .sym sidecar
+    private boolean optimize;       // Collect, optimize and relax before encoding
+    private boolean relocatable;    // Assembling an object: undefined labels become relocations
+
+    // Operands of the instruction just parsed; target is its label (null for a numeric offset)
+    private int parsedOp, parsedRd, parsedRs1, parsedRs2, parsedImm;
+    private String parsedTarget;
+
+    // Parsed instructions and label markers (optimizing mode only)
+    private final List<AsmOptimizer.Instruction> program = new ArrayList<>();
+
+    // Tokenizer state: the current line, its length without the comment, the scan position and
+    // the last token read
+    private char[] line = new char[256];
+    private int lineLength;
+    private int lineNumber;
+    private int pos;
+    private int tokenStart, tokenEnd;
+    private boolean inTextSection;
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    // Symbols off: no .sym sidecar and no per-instruction source text kept (for very large inputs)
+    public void setSymbols(boolean symbols) {
+        this.symbols = symbols;
+    }
+
+    // Optimize: peephole passes (see AsmOptimizer) and relaxation of branches to far labels, which
+    // are otherwise rejected. Costs a list entry per instruction instead of streaming. Applies to
+    // whole programs only; objects are encoded as written, since their layout is fixed by the linker.
+    public void setOptimize(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    // Assemble an .asm file into an ELF binary (plus its .sym sidecar)
+    public ProgramImage assemble(String asmFilePath, String elfFilePath) throws IOException {
+        if (verbose) System.out.println("Assembling " + asmFilePath + " into " + elfFilePath);
+        ProgramImage image = assembleFile(asmFilePath);
+        write(image, asmFilePath, elfFilePath);
+        return image;
+    }
+
+    // Assemble source text held in memory into an ELF binary (plus its .sym sidecar)
+    public ProgramImage assembleSource(CharSequence source, String elfFilePath) throws IOException {
+        if (verbose) System.out.println("Assembling source text into " + elfFilePath);
+        ProgramImage image = assembleSource(source);
+        write(image, "<source>", elfFilePath);
+        return image;
+    }
+
+    // Assemble an .asm file into an in-memory image, ready for RiscVInterpreter.load
+    public ProgramImage assembleFile(String asmFilePath) throws IOException {
+        try (Reader in = new FileReader(asmFilePath)) {
+            return assemble(in);
+        }
+    }
+
+    // Assemble source text into an in-memory image, without touching the filesystem
+    public ProgramImage assembleSource(CharSequence source) {
+        try {
+            return assemble(new StringReader(source.toString()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringReader does no I/O
+        }
+    }
+
+    // Assemble an .asm file into a relocatable object for the Linker
+    public ObjectFile assembleObject(String asmFilePath) throws IOException {
+        try (Reader in = new FileReader(asmFilePath)) {
+            return assembleObject(in, asmFilePath);
+        }
+    }
+
+    // Assemble source text into a relocatable object; name identifies it in link errors
+    public ObjectFile assembleObject(CharSequence source, String name) {
+        try {
+            return assembleObject(new StringReader(source.toString()), name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringReader does no I/O
+        }
+    }
+
+    private ObjectFile assembleObject(Reader in, String name) throws IOException {
+        relocatable = true;
+        try {
+            assembleText(in);
+        } finally {
+            relocatable = false;
+        }
+        return new ObjectFile(name, Arrays.copyOf(textSection, textCount), Arrays.copyOf(dataSection, dataCount),
+                new LinkedHashMap<>(labels), Arrays.copyOf(fixupIndex, fixupCount),
+                Arrays.copyOf(fixupLabel, fixupCount), Arrays.copyOf(fixupLine, fixupCount),
+                Arrays.copyOf(lineNumbers, textCount), symbols ? Arrays.copyOf(sourceLines, textCount) : null);
+    }
+
+    private ProgramImage assemble(Reader in) throws IOException {
+        assembleText(in);
+        return ProgramImage.of(textSection, textCount, dataSection, dataCount, labels);
+    }
+
+    // Assemble the input into textSection, dataSection and labels
+    private void assembleText(Reader in) throws IOException {
+        // Start from a clean state so one assembler can be reused for several files
+        textCount = 0;
+        dataCount = 0;
+        labels.clear();
+        fixupCount = 0;
+        Arrays.fill(fixupLabel, null);
+        Arrays.fill(sourceLines, null);
+        program.clear();
+        lineNumber = 0;
+        inTextSection = false;
+
+        // Single pass: split the input into lines and assemble each one as it arrives
+        char[] buf = new char[8192];
+        int n;
+        lineLength = 0;
+        while ((n = in.read(buf)) > 0) {
+            int from = 0;
+            for (int i = 0; i < n; i++) {
+                if (buf[i] == '\n') {
+                    appendToLine(buf, from, i - from);
+                    assembleLine();
+                    lineLength = 0;
+                    from = i + 1;
+                }
+            }
+            appendToLine(buf, from, n - from);
+        }
+        if (lineLength > 0) assembleLine();
+
+        if (optimize && !relocatable) {
+            AsmOptimizer.optimize(program);
+            for (AsmOptimizer.Instruction insn : AsmOptimizer.layOut(program, labels)) {
+                emit(encode(insn.op, insn.rd, insn.rs1, insn.rs2, insn.imm), insn.line, insn.source);
+            }
+            program.clear();
+        } else {
+            resolveFixups();
+        }
+
+        if (verbose) {
+            System.out.println("Labels:");
+            for (Map.Entry<String, Integer> entry : labels.entrySet()) {
+                System.out.println(entry.getKey() + " : " + entry.getValue());
+            }
+        }
+    }
+
+    // Write an image assembled by this assembler as an ELF file and its symbol sidecar
+    private void write(ProgramImage image, String sourceName, String elfFilePath) throws IOException {
+        if (verbose) {
+            for (int i = 0; i < textCount; i++) {
+                System.out.printf("Writing instruction: 0x%08x%n", textSection[i]);
+            }
+        }
+        image.writeElf(Paths.get(elfFilePath));
+        if (verbose) System.out.println("ELF file written: " + elfFilePath);
+        if (symbols) writeSymbolFile(symbolFilePath(elfFilePath), sourceName);
+    }
+
+    private void appendToLine(char[] buf, int from, int length) {
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+        }
+        System.arraycopy(buf, from, line, lineLength, length);
+        lineLength += length;
+    }
+
+    // Assemble the current line: a directive, a label, an instruction, or a label followed by an instruction
+    private void assembleLine() {
+        lineNumber++;
+        for (int i = 0; i < lineLength; i++) {
+            if (line[i] == '#') { // Remove comments
+                lineLength = i;
+                break;
+            }
+        }
+        pos = 0;
+        if (!nextToken()) return;
+
+        if (tokenIs(".text")) {
+            inTextSection = true;
+            return;
+        } else if (tokenIs(".data")) {
+            inTextSection = false;
+            return;
+        }
+
+        if (!inTextSection) {
+            if (tokenIs(".word")) {
+                if (!nextToken()) throw error("Missing value for .word");
+                appendWord(parseNumber());
+            }
+            return;
+        }
+
+        if (pos < lineLength && line[pos] == ':') {
+            defineLabel(new String(line, tokenStart, tokenEnd - tokenStart));
+            pos++;
+            if (!nextToken()) return;
+        }
+        int instrStart = tokenStart;
+        if (verbose) System.out.println("Reading instruction: " + sourceText(instrStart));
+        parseInstruction();
+        if (nextToken()) throw error("Unexpected operand: " + tokenText());
+        String source = symbols ? sourceText(instrStart) : null;
+
+        if (optimize && !relocatable) {
+            program.add(new AsmOptimizer.Instruction(parsedOp, parsedRd, parsedRs1, parsedRs2, parsedImm,
+                    parsedTarget, lineNumber, source));
+            return;
+        }
+        int offset = parsedImm;
+        if (parsedTarget != null) {
+            Integer target = labels.get(parsedTarget);
+            if (target == null) {
+                addFixup(parsedTarget); // Encoded with offset 0, patched by resolveFixups
+                offset = 0;
+            } else {
+                offset = target - textCount * 4 - 4; // Offset relative to next instruction
+            }
+        }
+        checkOffset(parsedOp, offset, parsedTarget, lineNumber);
+        emit(encode(parsedOp, parsedRd, parsedRs1, parsedRs2, offset), lineNumber, source);
+    }
+
+    private void defineLabel(String label) {
+        if (labels.putIfAbsent(label, textCount * 4) != null) { // Byte offset (final address when optimizing)
+            throw error("Duplicate label: " + label);
+        }
+        if (optimize && !relocatable) program.add(AsmOptimizer.Instruction.label(label, lineNumber));
+    }
+
+    // Append an encoded instruction with its source line (and source text, with symbols on)
+    private void emit(int instr, int line, String source) {
+        if (textCount == textSection.length) {
+            textSection = Arrays.copyOf(textSection, textCount * 2);
+            lineNumbers = Arrays.copyOf(lineNumbers, textCount * 2);
+        }
+        textSection[textCount] = instr;
+        lineNumbers[textCount] = line;
+        if (symbols) {
+            if (textCount == sourceLines.length) sourceLines = Arrays.copyOf(sourceLines, textCount * 2);
+            sourceLines[textCount] = source;
+        }
+        textCount++;
+    }
+
+    private void appendWord(int value) {
+        if (dataCount + 4 > dataSection.length) {
+            dataSection = Arrays.copyOf(dataSection, dataSection.length * 2);
+        }
+        dataSection[dataCount++] = (byte) value;
+        dataSection[dataCount++] = (byte) (value >> 8);
+        dataSection[dataCount++] = (byte) (value >> 16);
+        dataSection[dataCount++] = (byte) (value >> 24);
+    }
+
+    // Patch the offsets of branches and jumps to labels defined after them. In an object, fixups to
+    // labels defined elsewhere are kept (moved to the front of the fixup arrays) as relocations.
+    private void resolveFixups() {
+        int kept = 0;
+        for (int i = 0; i < fixupCount; i++) {
+            Integer target = labels.get(fixupLabel[i]);
+            if (target == null) {
+                if (!relocatable) {
+                    throw new IllegalArgumentException("line " + fixupLine[i] + ": Undefined label: " + fixupLabel[i]);
+                }
+                fixupIndex[kept] = fixupIndex[i];
+                fixupLabel[kept] = fixupLabel[i];
+                fixupLine[kept] = fixupLine[i];
+                kept++;
+                continue;
+            }
+            int index = fixupIndex[i];
+            int offset = target - index * 4 - 4; // Offset relative to next instruction
+            textSection[index] = patchOffset(textSection[index], offset, fixupLabel[i], fixupLine[i]);
+        }
+        fixupCount = kept;
+    }
+
+    // Fill in the offset of a branch or jump encoded with offset 0
+    static int patchOffset(int instr, int offset, String label, int line) {
+        boolean jump = (instr & 0x7F) == OPCODE_JAL;
+        checkOffset(jump ? JAL : BEQ, offset, label, line);
+        return instr | (jump ? ujImmediate(offset) : sbImmediate(offset));
+    }
+
+    // Symbol sidecar path for an ELF file: "prog.elf" -> "prog.sym"
+    static String symbolFilePath(String elfFilePath) {
+        String base = elfFilePath.endsWith(".elf") ? elfFilePath.substring(0, elfFilePath.length() - 4) : elfFilePath;
+        return base + ".sym";
+    }
+
+    // Write the labels and the source line of every instruction, for profilers and debuggers.
+    // Format: "label <name> <offset>" and "line <offset> <line number> <source>", offsets in bytes into .text
+    private void writeSymbolFile(String symFilePath, String asmFilePath) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(symFilePath)));
+        out.println("# Symbols for " + asmFilePath);
+        labels.entrySet().stream()
+                .sorted(Map.Entry.comparingByValue())
+                .forEach(entry -> out.println("label " + entry.getKey() + " " + entry.getValue()));
+        for (int i = 0; i < textCount; i++) {
+            out.println("line " + (i * 4) + " " + lineNumbers[i] + " " + sourceLines[i]);
+        }
+        out.close();
+    }
+
+    // Parse the instruction whose mnemonic is the current token into parsedOp and its operands
+    private void parseInstruction() {
+        parsedOp = mnemonic();
+        parsedRd = parsedRs1 = parsedRs2 = parsedImm = 0;
+        parsedTarget = null;
+
+        switch (parsedOp) {
+            case LW: // lw rd, imm(rs1)
+                parsedRd = nextReg();
+                parsedImm = nextImmediate();
+                parsedRs1 = nextReg();
+                break;
+
+            case SW: // sw rs2, imm(rs1)
+                parsedRs2 = nextReg();
+                parsedImm = nextImmediate();
+                parsedRs1 = nextReg();
+                break;
+
+            case ADD: // add rd, rs1, rs2
+            case SUB: // sub rd, rs1, rs2
+                parsedRd = nextReg();
+                parsedRs1 = nextReg();
+                parsedRs2 = nextReg();
+                break;
+
+            case ADDI: // addi rd, rs1, imm
+                parsedRd = nextReg();
+                parsedRs1 = nextReg();
+                parsedImm = nextImmediate();
+                break;
+
+            case BEQ: // beq rs1, rs2, label/imm
+            case BLT: // blt rs1, rs2, label/imm
+            case BNE: // bne rs1, rs2, label/imm
+                parsedRs1 = nextReg();
+                parsedRs2 = nextReg();
+                nextTarget();
+                break;
+
+            case JAL: // jal rd, label/offset
+                parsedRd = nextReg();
+                nextTarget();
+                break;
+
+            case ECALL: // ecall (system call number in x17, arguments from x10)
+                break;
+
+            default:
+                throw error("Unknown instruction: " + tokenText());
+        }
+    }
+
+    // Encode an instruction into a 32-bit integer; imm is the offset in bytes for branches and jal.
+    // An lw, sw or addi immediate must fit in 12 bits (callers check branch offsets with checkOffset).
+    static int encode(int op, int rd, int rs1, int rs2, int imm) {
+        if ((op == LW || op == SW || op == ADDI) && !immediateFits(imm)) {
+            throw new IllegalArgumentException("Immediate " + imm + " out of range (-2048 to 2047)");
+        }
+        switch (op) {
+            case LW:
+                // I-type encoding: imm[11:0] rs1 rd opcode
+                return ((imm & 0xFFF) << 20) | (rs1 << 15) | (0x2 << 12) | (rd << 7) | OPCODE_LW;
+
+            case SW:
+                // S-type encoding: imm[11:5] rs2 rs1 imm[4:0] opcode
+                return (((imm >> 5) & 0x7F) << 25) | (rs2 << 20) | (rs1 << 15) | (0x2 << 12) | ((imm & 0x1F) << 7) | OPCODE_SW;
+
+            case ADD:
+                // R-type encoding: 0x33 rs2 rs1 rd opcode
+                return (rs2 << 20) | (rs1 << 15) | (rd << 7) | OPCODE_ADD_SUB;
+
+            case SUB:
+                // R-type encoding: 0x20 rs2 rs1 rd opcode
+                return (0x20 << 25) | (rs2 << 20) | (rs1 << 15) | (rd << 7) | OPCODE_ADD_SUB;
+
+            case ADDI:
+                // I-type encoding: imm[11:0] rs1 rd opcode
+                return ((imm & 0xFFF) << 20) | (rs1 << 15) | (rd << 7) | OPCODE_ADDI;
+
+            case BEQ:
+                // SB-type encoding: imm[12] imm[10:5] rs2 rs1 0x0 imm[4:1] imm[11] opcode
+                return sbImmediate(imm) | (rs2 << 20) | (rs1 << 15) | OPCODE_BEQ_BLT;
+
+            case BLT:
+                // SB-type encoding: imm[12] imm[10:5] rs2 rs1 0x4 imm[4:1] imm[11] opcode
+                return sbImmediate(imm) | (rs2 << 20) | (rs1 << 15) | (0x4 << 12) | OPCODE_BEQ_BLT;
+
+            case BNE:
+                // SB-type encoding: imm[12] imm[10:5] rs2 rs1 0x1 imm[4:1] imm[11] opcode
+                return sbImmediate(imm) | (rs2 << 20) | (rs1 << 15) | (0x1 << 12) | OPCODE_BEQ_BLT;
+
+            case JAL:
+                // UJ-type encoding: imm[20] imm[10:1] imm[11] imm[19:12] rd opcode
+                return ujImmediate(imm) | (rd << 7) | OPCODE_JAL;
+
+            case ECALL:
+                // I-type encoding with every field zero
+                return OPCODE_SYSTEM;
+
+            default:
+                throw new IllegalArgumentException("Unknown instruction ID: " + op);
+        }
+    }
+
+    // Whether an lw, sw or addi immediate (12-bit signed) can be encoded
+    static boolean immediateFits(int imm) {
+        return imm >= -2048 && imm < 2048;
+    }
+
+    // Whether a branch (13-bit SB) or jal (21-bit UJ) offset can be encoded
+    static boolean offsetFits(int op, int offset) {
+        int limit = op == JAL ? 1 << 20 : 1 << 12;
+        return offset >= -limit && offset < limit;
+    }
+
+    // Reject a branch or jump offset that does not fit its encoding. Only branches to labels can be
+    // relaxed by the optimizing back end; a numeric offset is an error either way.
+    static void checkOffset(int op, int offset, String target, int line) {
+        if ((op == BEQ || op == BLT || op == BNE || op == JAL) && !offsetFits(op, offset)) {
+            String kind = op == JAL ? "Jump" : "Branch";
+            if (target == null) {
+                int limit = op == JAL ? 1 << 20 : 1 << 12;
+                throw new IllegalArgumentException("line " + line + ": " + kind + " offset " + offset +
+                        " out of range (" + -limit + " to " + (limit - 1) + ")" +
+                        (op == JAL ? "" : "; branch to a label so setOptimize(true) can relax it"));
+            }
+            throw new IllegalArgumentException("line " + line + ": " + kind + " target " + target +
+                    " out of range (offset " + offset + ")" +
+                    (op == JAL ? "" : "; assemble with setOptimize(true) to relax it"));
+        }
+    }
+
+    // SB-type immediate bits: imm[12] imm[10:5] ... imm[4:1] imm[11]
+    private static int sbImmediate(int imm) {
+        return (((imm >> 12) & 0x1) << 31) | (((imm >> 5) & 0x3F) << 25) | (((imm >> 1) & 0xF) << 8) | (((imm >> 11) & 0x1) << 7);
+    }
+
+    // UJ-type immediate bits: imm[20] imm[10:1] imm[11] imm[19:12]
+    private static int ujImmediate(int imm) {
+        return (((imm >> 20) & 0x1) << 31) | (((imm >> 1) & 0x3FF) << 21) | (((imm >> 11) & 0x1) << 20) | (((imm >> 12) & 0xFF) << 12);
+    }
+
+    // Advance to the next token, skipping whitespace, commas and parentheses; false at end of line
+    private boolean nextToken() {
+        while (pos < lineLength && isSeparator(line[pos])) pos++;
+        if (pos == lineLength) return false;
+        tokenStart = pos;
+        while (pos < lineLength && !isSeparator(line[pos]) && line[pos] != ':') pos++;
+        tokenEnd = pos;
+        return true;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == ',' || c == '(' || c == ')' || c == '\r';
+    }
+
+    private boolean tokenIs(String text) {
+        int length = tokenEnd - tokenStart;
+        if (length != text.length()) return false;
+        for (int i = 0; i < length; i++) {
+            if (line[tokenStart + i] != text.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // Mnemonic ID of the current token (case-insensitive), or -1
+    private int mnemonic() {
+        int length = tokenEnd - tokenStart;
+        for (int id = 0; id < MNEMONICS.length; id++) {
+            String name = MNEMONICS[id];
+            if (name.length() != length) continue;
+            int i = 0;
+            while (i < length && Character.toLowerCase(line[tokenStart + i]) == name.charAt(i)) i++;
+            if (i == length) return id;
+        }
+        return -1;
+    }
+
+    // Parse register name (e.g., "x5" -> 5)
+    private int nextReg() {
+        if (!nextToken()) throw error("Missing register operand");
+        char first = line[tokenStart];
+        if ((first != 'x' && first != 'X') || tokenEnd - tokenStart < 2 || tokenEnd - tokenStart > 3) {
+            throw error("Bad register: " + tokenText());
+        }
+        int reg = 0;
+        for (int i = tokenStart + 1; i < tokenEnd; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) throw error("Bad register: " + tokenText());
+            reg = reg * 10 + digit;
+        }
+        if (reg > 31) throw error("Bad register: " + tokenText());
+        return reg;
+    }
+
+    private int nextNumber() {
+        if (!nextToken()) throw error("Missing immediate operand");
+        return parseNumber();
+    }
+
+    // 12-bit signed immediate of lw, sw or addi
+    private int nextImmediate() {
+        int imm = nextNumber();
+        if (!immediateFits(imm)) throw error("Immediate " + tokenText() + " out of range (-2048 to 2047)");
+        return imm;
+    }
+
+    // Parse the current token as a number (decimal or hexadecimal with 0x prefix, optionally signed)
+    private int parseNumber() {
+        int i = tokenStart;
+        boolean negative = false;
+        if (i < tokenEnd && (line[i] == '-' || line[i] == '+')) {
+            negative = line[i] == '-';
+            i++;
+        }
+        int radix = 10;
+        if (i + 1 < tokenEnd && line[i] == '0' && (line[i + 1] == 'x' || line[i + 1] == 'X')) {
+            radix = 16;
+            i += 2;
+        }
+        if (i == tokenEnd) throw error("Bad number: " + tokenText());
+        long value = 0;
+        for (; i < tokenEnd; i++) {
+            int digit = Character.digit(line[i], radix);
+            if (digit < 0) throw error("Bad number: " + tokenText());
+            value = value * radix + digit;
+            if (value > 0xFFFFFFFFL) throw error("Number out of range: " + tokenText());
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    // Branch target: a number (offset in bytes, relative to the next instruction) into parsedImm,
+    // or a label into parsedTarget
+    private void nextTarget() {
+        if (!nextToken()) throw error("Missing branch target");
+        char first = line[tokenStart];
+        if (Character.isDigit(first) || first == '-' || first == '+') {
+            parsedImm = parseNumber(); // Direct immediate (decimal or hex)
+        } else {
+            parsedTarget = tokenText();
+        }
+    }
+
+    private void addFixup(String label) {
+        if (fixupCount == fixupIndex.length) {
+            int capacity = fixupCount * 2;
+            fixupIndex = Arrays.copyOf(fixupIndex, capacity);
+            fixupLabel = Arrays.copyOf(fixupLabel, capacity);
+            fixupLine = Arrays.copyOf(fixupLine, capacity);
+        }
+        fixupIndex[fixupCount] = textCount;
+        fixupLabel[fixupCount] = label;
+        fixupLine[fixupCount] = lineNumber;
+        fixupCount++;
+    }
+
+    private String tokenText() {
+        return new String(line, tokenStart, tokenEnd - tokenStart);
+    }
+
+    // Source text of the current line from start, without the comment and surrounding whitespace
+    private String sourceText(int start) {
+        return new String(line, start, lineLength - start).trim();
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("line " + lineNumber + ": " + message);
+    }
+
+    // Main method to test the assembler
+    // TODO: Use command-line arguments for input/output files
+    public static void main(String[] args) throws Exception {
+        RiscVAssembler assembler = new RiscVAssembler();
+        assembler.setVerbose(true);
+
+        // Assemble arithmetic example
+        assembler.assemble("arithmetic.asm", "arithmetic.elf");
+
+        // Assemble bubble sort example
+        assembler.assemble("bubble_sort.asm", "bubble_sort.elf");
+    }
 }
\ No newline at end of file
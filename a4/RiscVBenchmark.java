@@ -0,0 +1,299 @@
+// Benchmarks for the assembler and interpreter hot paths.
+// This is a deliberate stand-in for JMH, because the tree has no build file to pull JMH in: a small
+// harness with warmup and measured iterations and allocation and GC counts per iteration, running
+// with nothing but the JDK. Its limits compared with JMH:
+//   - no forking: every benchmark runs in this JVM, after the ones before it have shaped the JIT
+//     profile, so compare numbers from one benchmark per JVM (pass its name as the filter);
+//   - dead-code elimination is only guarded by folding each operation's result into a volatile
+//     sink; there is no Blackhole, so work whose result does not reach the return value can still
+//     be optimized away.
+// README.md has the details:
+//
+//   java RiscVBenchmark [name filter]
+//
+// Workloads are generated: a large mixed assembly source, random valid instruction encodings,
+// bubble sort over N random words, a tight nested arithmetic loop, and a loop of small write
+// system calls.
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+public class RiscVBenchmark {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+
+    private static final int ASSEMBLE_LINES = 20_000;
+    private static final int DECODE_BATCH = 4096;
+    private static final int SORT_ELEMENTS = 256;
+    private static final int LOOP_OUTER = 1000, LOOP_INNER = 1000;
+    private static final int WRITE_CALLS = 100_000, WRITE_BYTES = 8;
+
+    // Results are folded into the sink so the JIT cannot drop the measured work
+    static volatile long sink;
+
+    // One benchmark operation; returns how many units (lines, decodes, instructions) it processed
+    interface Operation {
+        long run() throws Exception;
+    }
+
+    private static final PrintStream REAL_OUT = System.out;
+    private static final PrintStream NULL_OUT = new PrintStream(OutputStream.nullOutputStream());
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        Path dir = Files.createTempDirectory("rvbench");
+
+        // Assembler: large generated source, assembled to a temporary ELF
+        Path bigAsm = dir.resolve("big.asm");
+        Files.writeString(bigAsm, largeSource(ASSEMBLE_LINES, 1));
+        String bigElf = dir.resolve("big.elf").toString();
+        RiscVAssembler assembler = new RiscVAssembler();
+        bench(filter, "assemble", "lines/s", () -> {
+            assembler.assemble(bigAsm.toString(), bigElf);
+            return ASSEMBLE_LINES;
+        });
+
+        // Decoder: random valid encodings of every instruction the interpreter knows
+        int[] encodings = randomEncodings(DECODE_BATCH, 2);
+        bench(filter, "decode", "decodes/s", () -> {
+            long acc = 0;
+            for (int instr : encodings) {
+                int fields = RiscVInterpreter.decodeFields(instr);
+                acc += fields + RiscVInterpreter.decodeImmediate(instr, fields & 0xFF);
+            }
+            sink += acc;
+            return encodings.length;
+        });
+
+        // End to end: instructions per second of run(), interpreted and tiered
+        ProgramImage sort = new RiscVAssembler().assembleSource(bubbleSortSource(SORT_ELEMENTS, 3));
+        ProgramImage loop = new RiscVAssembler().assembleSource(arithmeticLoopSource(LOOP_OUTER, LOOP_INNER));
+        bench(filter, "run.bubbleSort.interpreter", "instr/s", () -> runProgram(sort, 0));
+        bench(filter, "run.bubbleSort.jit", "instr/s", () -> runProgram(sort, 2));
+        bench(filter, "run.arithmeticLoop.interpreter", "instr/s", () -> runProgram(loop, 0));
+        bench(filter, "run.arithmeticLoop.jit", "instr/s", () -> runProgram(loop, 2));
+
+        // Guest output: many small writes, buffered by HostIO into few host writes
+        ProgramImage writes = new RiscVAssembler().assembleSource(writeLoopSource(WRITE_CALLS, WRITE_BYTES));
+        bench(filter, "ecall.write", "bytes/s", () -> {
+            RiscVInterpreter rv = new RiscVInterpreter();
+            rv.setVerbose(false);
+            rv.setHostIO(HostIO.of(InputStream.nullInputStream(), OutputStream.nullOutputStream()));
+            rv.load(writes);
+            rv.setJitThreshold(2);
+            rv.run();
+            return rv.hostIO().bytesWritten();
+        });
+
+        // Many short programs: assemble and run through an ELF file, or entirely in memory
+        String shortSource = arithmeticLoopSource(4, 4);
+        Path shortAsm = dir.resolve("short.asm");
+        Files.writeString(shortAsm, shortSource);
+        String shortElf = dir.resolve("short.elf").toString();
+        RiscVAssembler shortAssembler = new RiscVAssembler();
+        shortAssembler.setSymbols(false);
+        bench(filter, "assembleAndRun.file", "programs/s", () -> {
+            shortAssembler.assemble(shortAsm.toString(), shortElf);
+            RiscVInterpreter rv = new RiscVInterpreter();
+            System.setOut(NULL_OUT);
+            try {
+                rv.loadElf(shortElf);
+                rv.run();
+            } finally {
+                System.setOut(REAL_OUT);
+            }
+            sink += rv.register(12);
+            return 1;
+        });
+        bench(filter, "assembleAndRun.memory", "programs/s", () -> {
+            sink += runProgram(shortAssembler.assembleSource(shortSource), 0);
+            return 1;
+        });
+    }
+
+    // Load and run a program on a fresh interpreter; returns the instructions it executed
+    private static long runProgram(ProgramImage image, int jitThreshold) {
+        RiscVInterpreter rv = new RiscVInterpreter();
+        System.setOut(NULL_OUT);
+        try {
+            rv.load(image);
+            rv.setJitThreshold(jitThreshold);
+            rv.run();
+        } finally {
+            System.setOut(REAL_OUT);
+        }
+        return rv.instructionCount();
+    }
+
+    // Run warmup and measured iterations of op and print throughput, allocation and GC figures
+    private static void bench(String filter, String name, String unit, Operation op) throws Exception {
+        if (!name.contains(filter)) return;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(op);
+        }
+        double[] scores = new double[MEASURE_ITERATIONS];
+        double allocPerUnit = 0;
+        long gcCount = 0, gcMillis = 0;
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            long gcCountBefore = gcCount(), gcMillisBefore = gcMillis();
+            long allocBefore = allocatedBytes();
+            long[] result = iteration(op);
+            allocPerUnit += (double) (allocatedBytes() - allocBefore) / result[0] / MEASURE_ITERATIONS;
+            gcCount += gcCount() - gcCountBefore;
+            gcMillis += gcMillis() - gcMillisBefore;
+            scores[i] = result[0] * 1e9 / result[1];
+        }
+        double mean = 0, variance = 0;
+        for (double score : scores) mean += score / scores.length;
+        for (double score : scores) variance += (score - mean) * (score - mean) / (scores.length - 1);
+        System.out.printf("%-32s %14.0f +- %12.0f %-10s  alloc %9.3f B/unit  gc %d (%d ms)%n",
+                name, mean, Math.sqrt(variance), unit, allocPerUnit, gcCount, gcMillis);
+    }
+
+    // Repeat op for about ITERATION_NANOS; returns {units processed, elapsed nanoseconds}
+    private static long[] iteration(Operation op) throws Exception {
+        long units = 0, start = System.nanoTime(), elapsed;
+        do {
+            units += op.run();
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        return new long[] {units, elapsed};
+    }
+
+    // Bytes allocated by this thread so far (HotSpot extension of ThreadMXBean)
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += gc.getCollectionCount();
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) millis += gc.getCollectionTime();
+        return millis;
+    }
+
+    // A source with the given number of instruction lines: every mnemonic, labels and comments.
+    // Branches go to labels at most 60 blocks of 16 instructions away, within the 13-bit offset range.
+    static String largeSource(int lines, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(".text\n");
+        int blocks = (lines + 15) / 16;
+        for (int i = 0; i < lines; i++) {
+            if (i % 16 == 0) sb.append("L").append(i / 16).append(":\n");
+            int rd = 1 + random.nextInt(31), rs1 = random.nextInt(32), rs2 = random.nextInt(32);
+            int imm = random.nextInt(4096) - 2048;
+            String label = "L" + Math.max(0, Math.min(blocks - 1, i / 16 + random.nextInt(121) - 60));
+            switch (random.nextInt(9)) {
+                case 0: sb.append("    add x").append(rd).append(", x").append(rs1).append(", x").append(rs2); break;
+                case 1: sb.append("    sub x").append(rd).append(", x").append(rs1).append(", x").append(rs2); break;
+                case 2: sb.append("    addi x").append(rd).append(", x").append(rs1).append(", ").append(imm); break;
+                case 3: sb.append("    lw x").append(rd).append(", ").append(imm & ~3).append("(x").append(rs1).append(")"); break;
+                case 4: sb.append("    sw x").append(rs2).append(", ").append(imm & ~3).append("(x").append(rs1).append(")"); break;
+                case 5: sb.append("    beq x").append(rs1).append(", x").append(rs2).append(", ").append(label); break;
+                case 6: sb.append("    bne x").append(rs1).append(", x").append(rs2).append(", ").append(label); break;
+                case 7: sb.append("    blt x").append(rs1).append(", x").append(rs2).append(", ").append(label); break;
+                default: sb.append("    jal x").append(rd).append(", ").append(label); break;
+            }
+            sb.append(i % 4 == 0 ? "   # generated\n" : "\n");
+        }
+        return sb.toString();
+    }
+
+    // count random valid encodings spread evenly over the known opcodes
+    static int[] randomEncodings(int count, long seed) {
+        Random random = new Random(seed);
+        int[] encodings = new int[count];
+        int ops = RiscVInterpreter.opCount() - RiscVInterpreter.OP_ADD;
+        for (int i = 0; i < count; i++) {
+            encodings[i] = RiscVInterpreter.encode(RiscVInterpreter.OP_ADD + i % ops, random.nextInt());
+        }
+        return encodings;
+    }
+
+    // Bubble sort (same algorithm as bubble_sort.asm) over n random words at DATA_BASE; n <= 2047
+    static String bubbleSortSource(int n, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder();
+        sb.append(".text\n")
+          .append("    addi x5, x0, 0x0400\n")
+          .append("    addi x6, x0, ").append(n).append('\n')
+          .append("outer_loop:\n")
+          .append("    addi x6, x6, -1\n")
+          .append("    beq x6, x0, done\n")
+          .append("    addi x7, x6, 0\n")
+          .append("    addi x8, x5, 0\n")
+          .append("inner_loop:\n")
+          .append("    lw x9, 0(x8)\n")
+          .append("    lw x10, 4(x8)\n")
+          .append("    blt x9, x10, no_swap\n")
+          .append("    sw x10, 0(x8)\n")
+          .append("    sw x9, 4(x8)\n")
+          .append("no_swap:\n")
+          .append("    addi x8, x8, 4\n")
+          .append("    addi x7, x7, -1\n")
+          .append("    bne x7, x0, inner_loop\n")
+          .append("    jal x0, outer_loop\n")
+          .append("done:\n")
+          .append("    jal x0, 0\n")
+          .append(".data\n");
+        for (int i = 0; i < n; i++) {
+            sb.append("    .word ").append(random.nextInt(100_000)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // calls write system calls of size bytes each (calls a multiple of 1000, size <= 2047)
+    static String writeLoopSource(int calls, int size) {
+        return ".text\n" +
+               "    addi x5, x0, " + calls / 1000 + "\n" +
+               "outer:\n" +
+               "    addi x6, x0, 1000\n" +
+               "inner:\n" +
+               "    addi x17, x0, 64\n" +  // write(1, DATA_BASE, size)
+               "    addi x10, x0, 1\n" +
+               "    addi x11, x0, 0x400\n" +
+               "    addi x12, x0, " + size + "\n" +
+               "    ecall\n" +
+               "    addi x6, x6, -1\n" +
+               "    bne x6, x0, inner\n" +
+               "    addi x5, x5, -1\n" +
+               "    bne x5, x0, outer\n" +
+               "    jal x0, 0\n" +
+               ".data\n" +
+               "    .word 0x6c6c6548\n" +  // "Hello, w"
+               "    .word 0x77202c6f\n";
+    }
+
+    // Nested counting loop doing register arithmetic only; outer and inner <= 2047
+    static String arithmeticLoopSource(int outer, int inner) {
+        return ".text\n" +
+               "    addi x5, x0, " + outer + "\n" +
+               "outer:\n" +
+               "    addi x6, x0, " + inner + "\n" +
+               "inner:\n" +
+               "    add x10, x10, x6\n" +
+               "    sub x11, x11, x10\n" +
+               "    addi x12, x12, 3\n" +
+               "    addi x6, x6, -1\n" +
+               "    bne x6, x0, inner\n" +
+               "    addi x5, x5, -1\n" +
+               "    bne x5, x0, outer\n" +
+               "    jal x0, 0\n";
+    }
+}
@@ -1,236 +1,833 @@
-// A simple RISV-V interpreter
-
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-
-public class RiscVInterpreter {
-    private int[] registers = new int[32]; // 32 RISC-V registers (x0-x31), x0 is always 0
-    private byte[] memory = new byte[1 << 20]; // 1MB of memory (byte-addressable)
-    private int pc; // Program counter, points to the next instruction
-
-    // Constants for memory layout
-    private static final int TEXT_BASE = 0x0040; // Base address for .text section (entry point)
-    private static final int DATA_BASE = 0x0400; // Base address for .data section
-
-    // Load the simplified ELF file into memory
-    // TODO: Add some error handling
-    public void loadElf(String filePath) throws Exception {
-        RandomAccessFile file = new RandomAccessFile(filePath, "r");
-
-        // Read the 32-byte header
-        byte[] header = new byte[32];
-        file.readFully(header);
-        ByteBuffer buf = ByteBuffer.wrap(header).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-
-        // Verify magic number (0x7F "ELF")
-        int magic = buf.getInt(0);
-        if (magic != 0x464C457F) {
-            file.close();
-            throw new Exception("Not a valid ELF file");
-        }
-
-        // Extract header fields
-        int fileSize = buf.getInt(4);      // Total file size
-        pc = buf.getInt(8);                // Entry point (initial PC)
-        int textOffset = buf.getInt(12);   // Offset to .text section
-        int textSize = buf.getInt(16);     // Size of .text section
-        int dataOffset = buf.getInt(20);   // Offset to .data section
-        int dataSize = buf.getInt(24);     // Size of .data section
-
-        // Load .text section (instructions) into memory
-        file.seek(textOffset);
-        file.read(memory, TEXT_BASE, textSize);
-
-        // Load .data section (global data) into memory
-        file.seek(dataOffset);
-        file.read(memory, DATA_BASE, dataSize);
-
-        file.close();
-        System.out.println("ELF loaded: PC=0x" + Integer.toHexString(pc) +
-                ", Text size=" + textSize + ", Data size=" + dataSize);
-    }
-
-    // Main execution loop: process instructions one by one
-    public void run() {
-        while (true) {
-            int instr = fetch();              // Stage 1: Get the instruction
-            DecodedInstr decoded = decode(instr); // Stage 2: Decode it
-            if (decoded == null) {
-                System.out.println("Invalid instruction at PC=0x" + Integer.toHexString(pc - 4) + ": 0x" + Integer.toHexString(instr));
-                break; // Stop on invalid instruction
-            }
-            int execResult = execute(decoded);    // Stage 3: Execute the operation
-            memoryAccess(decoded, execResult);    // Stage 4: Memory ops (if needed)
-            writeBack(decoded, execResult);       // Stage 5: Write results (if needed)
-            printTrace(decoded);                  // Show what happened
-            // Exit condition: jal x0, 0
-            if (decoded.op.equals("jal") && decoded.rd == 0 && decoded.imm == 0) {
-                System.out.println("Program exited at PC=0x" + Integer.toHexString(pc - 4));
-                break;
-            }        
-        }
-    }
-
-    // Stage 1: Fetch the next 32-bit instruction from memory
-    private int fetch() {
-        // Read 4 bytes from memory at PC and convert to int (little-endian)
-        int instr = ByteBuffer.wrap(memory, pc, 4).order(java.nio.ByteOrder.LITTLE_ENDIAN).getInt();
-        pc += 4; // Move PC to next instruction (4 bytes = 32 bits)
-        return instr;
-    }
-
-    // Stage 2: Decode the 32-bit instruction into its parts
-    private DecodedInstr decode(int instr) {
-        int opcode = instr & 0x7F;          // Bits 6-0: Opcode
-        int rd = (instr >> 7) & 0x1F;       // Bits 11-7: Destination register
-        int funct3 = (instr >> 12) & 0x7;   // Bits 14-12: Function code
-        int rs1 = (instr >> 15) & 0x1F;     // Bits 19-15: Source register 1
-        int rs2 = (instr >> 20) & 0x1F;     // Bits 24-20: Source register 2
-        int imm = 0;                        // Immediate value (varies by instruction)
-
-        switch (opcode) {
-            case 0x33: // R-type: Arithmetic (e.g., add)
-                int funct7 = (instr >> 25) & 0x7F; // Bits 31-25: Extra function code
-                if (funct3 == 0x0 && funct7 == 0x00) {
-                    return new DecodedInstr("add", rd, rs1, rs2, 0, false);
-                }
-                break;
-
-            case 0x13: // I-type: Immediate (e.g., addi)
-                imm = (instr >> 20); // Bits 31-20: Immediate (sign-extended)
-                if (imm >= 0x800) 
-                    imm -= 0x1000; // Sign-extend 12-bit value
-                if (funct3 == 0x0) {
-                    return new DecodedInstr("addi", rd, rs1, 0, imm, false);
-                }
-                break;
-
-            case 0x03: // I-type: Load (e.g., lw)
-                imm = (instr >> 20); // Bits 31-20: Offset
-                if (imm >= 0x800) 
-                    imm -= 0x1000; // Sign-extend
-                if (funct3 == 0x2) { // funct3=010 for lw
-                    return new DecodedInstr("lw", rd, rs1, 0, imm, false);
-                }
-                break;
-
-            case 0x63: // SB-type: Branch (e.g., beq)
-                // SB-type immediate: [12|10:5|4:1|11] (bits rearranged)
-                imm = ((instr >> 31) << 12) | (((instr >> 25) & 0x3F) << 5) |
-                      (((instr >> 8) & 0xF) << 1) | (((instr >> 7) & 0x1) << 11);
-                if (imm >= 0x1000) 
-                    imm -= 0x2000; // Sign-extend 13-bit value
-                if (funct3 == 0x0) {
-                    return new DecodedInstr("beq", 0, rs1, rs2, imm, true);
-                }
-                break;
-
-            case 0x6F: // UJ-type (jal)
-                imm = ((instr >> 31) << 20) | (((instr >> 21) & 0x3FF) << 1) |
-                        (((instr >> 20) & 0x1) << 11) | (((instr >> 12) & 0xFF) << 12);
-                if (imm >= 0x80000) 
-                    imm -= 0x100000;
-                return new DecodedInstr("jal", rd, 0, 0, imm, true);
-
-            default:
-                return null; // Unknown opcode = invalid instruction
-        }
-        return null; // Unknown combination
-    }
-
-    // Stage 3: Execute the instruction's operation
-    private int execute(DecodedInstr instr) {
-        switch (instr.op) {
-            case "add":
-                return registers[instr.rs1] + registers[instr.rs2]; // Add two registers
-            case "addi":
-                return registers[instr.rs1] + instr.imm; // Add register and immediate
-            case "lw":
-                // Calculate memory address (rs1 + offset), return it for memory stage
-                return registers[instr.rs1] + instr.imm;
-            case "beq":
-                // Compare registers; update PC if equal (offset in half-words)
-                if (registers[instr.rs1] == registers[instr.rs2]) {
-                    pc += (instr.imm << 1); // Shift imm left by 1 (2 bytes)
-                }
-                return 0;
-            case "jal":
-                int nextPc = pc; // PC already incremented in fetch
-                pc += (instr.imm << 1); // Jump (imm in half-words)
-                return nextPc; // Return address for rd
-            default:
-                return 0; // Default case (shouldn’t happen with valid decode)
-        }
-    }
-
-    // Stage 4: Access memory (for loads and stores)
-    private void memoryAccess(DecodedInstr instr, int result) {
-        if (instr.op.equals("lw")) {
-            // Load a 32-bit word from memory at the calculated address
-            registers[instr.rd] = ByteBuffer.wrap(memory, result, 4)
-                    .order(java.nio.ByteOrder.LITTLE_ENDIAN).getInt();
-        }
-        // Add store instructions (e.g., sw) here
-    }
-
-    // Stage 5: Write results back to registers
-    private void writeBack(DecodedInstr instr, int result) {
-        // Only write if rd is not x0 (x0 is always 0) and not a branch
-        if (instr.rd != 0 && !instr.op.equals("beq")) {
-            if (!instr.op.equals("lw")) { // lw writes in memoryAccess
-                registers[instr.rd] = result;
-            }
-        }
-    }
-
-    // Print execution trace for debugging
-    private void printTrace(DecodedInstr instr) {
-        System.out.printf("PC=0x%x, Instr=%s, rd=x%d, rs1=x%d, rs2=x%d, imm=0x%x, x%d=%d\n",
-                pc - 4, instr.op, instr.rd, instr.rs1, instr.rs2, instr.imm,
-                instr.rd, registers[instr.rd]);
-    }
-
-    // Helper class to hold decoded instruction details
-    private static class DecodedInstr {
-        String op;              // Instruction name (e.g., "add", "lw")
-        int rd, rs1, rs2, imm;  // Register indices and immediate value
-        boolean isBranchOrJump; // True for branches/jumps
-
-        DecodedInstr(String op, int rd, int rs1, int rs2, int imm, boolean isBranchOrJump) {
-            this.op = op;
-            this.rd = rd;
-            this.rs1 = rs1;
-            this.rs2 = rs2;
-            this.imm = imm;
-            this.isBranchOrJump = isBranchOrJump;
-        }
-    }
-
-    private void dumpMemory(int start, int end) {
-        System.out.printf("Memory dump from 0x%08x to 0x%08x:\n", start, end);
-        for (int i = start; i < end; i += 4) {
-            System.out.printf("0x%08x: %02x%02x%02x%02x\n", i,
-            memory[i + 3], memory[i + 2], memory[i + 1], memory[i]);
-        }
-    }
-
-    private void dumpRegisters() {
-        System.out.println("Registers (values in hex):");
-        for (int i = 0; i < 32; i++) {
-            if (i < 10) System.out.print(" ");
-            System.out.printf("x%d: %08x   ", i, registers[i]);
-            if ((i + 1) % 4 == 0) 
-                System.out.println();
-        }
-    }
-
-    // Entry point: Load ELF and run the interpreter
-    // TODO: Use command line arguments
-    public static void main(String[] args) throws Exception {
-        RiscVInterpreter rv = new RiscVInterpreter();
-        rv.loadElf("arithmetic.elf"); // Replace with your ELF file path
-        rv.run();
-        rv.dumpMemory(0x0200, 0x0220);
-        rv.dumpRegisters();
-    }
+// A simple RISV-V interpreter
+//
+// System calls (ecall) follow the Linux convention: number in x17 (a7), arguments in x10-x12
+// (a0-a2), result in x10. Supported: read (63), write (64), exit (93) and, not a Linux call,
+// counter (500: a0 = 0 for instructions retired, 1 for pipeline-model cycles; 64-bit value in a0/a1).
+// Others return -ENOSYS. Reads and writes go through a buffered HostIO. The guest buffer they copy
+// is looked up in the cache simulator (one access per line); the pipeline model, which has no
+// memory latency, times the whole call as one instruction.
+
+import java.nio.file.Paths;
+import java.time.Duration;
+
+public class RiscVInterpreter {
+    private int[] registers = new int[32]; // 32 RISC-V registers (x0-x31), x0 is always 0
+    private final GuestMemory memory; // Paged 32-bit address space (byte-addressable)
+    private int pc; // Program counter, points to the next instruction
+    private long instret; // Instructions executed (retired) so far
+
+    // Decoded-instruction cache, one slot per .text word: slot = (pc - TEXT_BASE) >> 2.
+    // Fields are packed as op | rd << 8 | rs1 << 13 | rs2 << 18 (op 0 = not decoded yet);
+    // the last slot is scratch space for instructions fetched from outside .text.
+    int[] decodedFields = new int[1];
+    int[] decodedImm = new int[1];
+    int[] decodedRaw = new int[1]; // Raw instruction word
+    private int textEnd = TEXT_BASE; // End address (exclusive) of the loaded .text section
+
+    // Tiered execution: entry counts per basic block and the compiled blocks, indexed by .text slot.
+    // A block is compiled once its entry count reaches jitThreshold (0 = pure interpreter).
+    private int jitThreshold = 0;
+    private int[] blockCounts = new int[1];
+    private int[] blockEnds = new int[1];
+    private BlockCompiler.Block[] compiledBlocks = new BlockCompiler.Block[1];
+    private int leftBlockAt; // PC where the running compiled block left early (0 = it ran to its end)
+    private int faultPc; // Instruction that caused the last memory fault
+    private long compileFailures; // Hot blocks BlockCompiler could not define (they run interpreted)
+    private String lastCompileFailure;
+
+    private ProgramImage image; // Program last loaded (null = none, or restored from a snapshot file)
+    private Tracer tracer; // Execution trace sink (null = tracing off)
+    private GuestProfiler profiler; // Guest profile counters (null = profiling off)
+    private PipelineModel pipeline; // Cycle timing model (null = no timing)
+    private CacheSimulator caches; // Cache hierarchy model (null = no cache simulation)
+    private HostIO io; // Guest input and output (created for the console on the first read or write)
+    private StoreListener storeListener; // Told about every guest store (null = none)
+    private int exitCode; // Argument of the exit system call
+
+    // Why run() returned
+    public enum StopReason {
+        EXIT,                // jal x0, 0 or the exit system call
+        INVALID_INSTRUCTION,
+        MEMORY_FAULT,
+        INSTRUCTION_LIMIT,   // instructionCount() reached the limit
+        TIMEOUT              // run() took longer than the timeout
+    }
+
+    // Run limits (0 = none); the limit and the clock are checked every SLICE instructions
+    private static final int SLICE = 1 << 16;
+    private long instructionLimit;
+    private long timeoutNanos;
+    private StopReason stopReason;
+    private String stopMessage;
+    private boolean verbose = true; // Print a line when the program stops
+
+    // Opcode IDs used in the decoded-instruction cache (index into HANDLERS)
+    static final int OP_UNDECODED = 0;
+    static final int OP_INVALID = 1;
+    static final int OP_ADD = 2;
+    static final int OP_SUB = 3;
+    static final int OP_ADDI = 4;
+    static final int OP_LW = 5;
+    static final int OP_SW = 6;
+    static final int OP_BEQ = 7;
+    static final int OP_BNE = 8;
+    static final int OP_BLT = 9;
+    static final int OP_JAL = 10;
+    static final int OP_ECALL = 11;
+
+    // System call numbers (x17)
+    static final int SYS_READ = 63;
+    static final int SYS_WRITE = 64;
+    static final int SYS_EXIT = 93;
+    static final int SYS_COUNTER = 500;
+    private static final int ENOSYS = 38;
+
+    // Instruction formats, used to pick the immediate layout and the register fields in use
+    private static final int FMT_R = 0;
+    private static final int FMT_I = 1;
+    private static final int FMT_S = 2;
+    private static final int FMT_SB = 3;
+    private static final int FMT_UJ = 4;
+
+    // Handlers indexed by opcode ID, and the dispatch table mapping instruction bits to opcode IDs.
+    // Dispatch key: opcode[6:2] | funct3 << 5 | funct7[5] << 8 (bit 30 separates add/sub).
+    private static final Instruction[] HANDLERS = new Instruction[OP_ECALL + 1];
+    private static final byte[] DISPATCH = new byte[1 << 9];
+
+    // Constants for memory layout
+    static final int TEXT_BASE = 0x0040; // Base address for .text section (entry point)
+    static final int DATA_BASE = 0x0400; // Default address for .data (each image carries its own; see ProgramImage)
+
+    // Interpreter with heap-backed guest memory
+    public RiscVInterpreter() {
+        this(new GuestMemory());
+    }
+
+    // Interpreter running on the given guest memory (e.g. new GuestMemory(true) for off-heap pages)
+    public RiscVInterpreter(GuestMemory memory) {
+        this.memory = memory;
+        memory.setCodeWriteListener(this::invalidateDecoded); // Stores into code drop cached decodes
+    }
+
+    // Load the simplified ELF file into memory.
+    // The file is memory-mapped and validated once; later loads of the same file reuse its pages.
+    public void loadElf(String filePath) throws Exception {
+        ProgramImage image = ProgramImage.map(filePath);
+        load(image);
+        System.out.println("ELF loaded: PC=0x" + Integer.toHexString(pc) +
+                ", Text size=" + image.textSize + ", Data size=" + image.dataSize);
+    }
+
+    // Load a program image (from ProgramImage.map or straight from the assembler) into memory
+    public void load(ProgramImage image) {
+        image.installInto(memory);
+        pc = image.entry; // Entry point (initial PC)
+        memory.protect(TEXT_BASE, image.textSize, GuestMemory.PERM_READ | GuestMemory.PERM_WRITE | GuestMemory.PERM_EXEC);
+        resetCaches(image.textSize);
+        this.image = image;
+        resetObservers();
+    }
+
+    // Size the decode cache for a .text section of textSize bytes; slots are filled on first execution
+    private void resetCaches(int textSize) {
+        textEnd = TEXT_BASE + textSize;
+        decodedFields = new int[(textSize >> 2) + 1];
+        decodedImm = new int[(textSize >> 2) + 1];
+        decodedRaw = new int[(textSize >> 2) + 1];
+        blockCounts = new int[textSize >> 2];
+        blockEnds = new int[textSize >> 2];
+        compiledBlocks = new BlockCompiler.Block[textSize >> 2];
+    }
+
+    // Clear the attached observers and size their per-PC counters for the current .text, so counts
+    // from one program are never reported against another's PCs
+    private void resetObservers() {
+        if (profiler != null) profiler.reset(textSlots());
+        if (pipeline != null) pipeline.reset(textSlots());
+        if (caches != null) caches.reset(textSlots());
+    }
+
+    // Capture PC, registers, instruction count and memory. Memory is not copied: its pages become
+    // shared copy-on-write between this interpreter and the snapshot.
+    public Snapshot snapshot() {
+        return new Snapshot(pc, instret, textEnd - TEXT_BASE, registers.clone(), memory.fork(), image);
+    }
+
+    // Return to a snapshot taken from this or any other interpreter; cached decodes and compiled blocks are
+    // dropped. Attached observers keep counting if the snapshot is of the program loaded now, and are
+    // reset otherwise (including snapshots read from a file, whose program is unknown).
+    public void restore(Snapshot snapshot) {
+        memory.restore(snapshot.memory);
+        pc = snapshot.pc;
+        System.arraycopy(snapshot.registers, 0, registers, 0, registers.length);
+        instret = snapshot.instret;
+        resetCaches(snapshot.textSize);
+        boolean sameProgram = image != null && snapshot.image == image;
+        image = snapshot.image;
+        if (!sameProgram) resetObservers();
+    }
+
+    // A new interpreter that continues from this one's current state. Memory pages are shared
+    // copy-on-write; decoded instructions and compiled blocks carry over, as do the JIT threshold,
+    // run limits and verbosity. Nothing attached to this interpreter is inherited, since each belongs
+    // to one execution: the fork has no tracer, profiler, pipeline model, cache simulator or store
+    // listener, and uses the console for I/O, until they are set on it.
+    public RiscVInterpreter fork() {
+        RiscVInterpreter child = new RiscVInterpreter(memory.fork());
+        child.pc = pc;
+        child.registers = registers.clone();
+        child.instret = instret;
+        child.textEnd = textEnd;
+        child.image = image;
+        child.decodedFields = decodedFields.clone();
+        child.decodedImm = decodedImm.clone();
+        child.decodedRaw = decodedRaw.clone();
+        child.jitThreshold = jitThreshold;
+        child.blockCounts = blockCounts.clone();
+        child.blockEnds = blockEnds.clone();
+        child.compiledBlocks = compiledBlocks.clone();
+        child.instructionLimit = instructionLimit;
+        child.timeoutNanos = timeoutNanos;
+        child.verbose = verbose;
+        return child;
+    }
+
+    public int pc() {
+        return pc;
+    }
+
+    // Value of register x<index>
+    public int register(int index) {
+        return registers[index];
+    }
+
+    public GuestMemory memory() {
+        return memory;
+    }
+
+    // Receives the address and size of every guest store: sw, interpreted or compiled, and the bytes
+    // a read system call fills in
+    interface StoreListener {
+        void stored(int addr, int size);
+    }
+
+    // Report guest stores to listener (null = none); compilation stays on
+    void setStoreListener(StoreListener listener) {
+        storeListener = listener;
+    }
+
+    // Where read and write system calls go (by default the console)
+    public void setHostIO(HostIO io) {
+        this.io = io;
+    }
+
+    public HostIO hostIO() {
+        if (io == null) io = HostIO.console();
+        return io;
+    }
+
+    // Argument of the exit system call, if the program stopped through it (else 0)
+    public int exitCode() {
+        return exitCode;
+    }
+
+    // Compile basic blocks to JVM bytecode after they have been entered this many times
+    // (0 disables compilation). Tracing needs every instruction, so it turns compilation off.
+    public void setJitThreshold(int threshold) {
+        jitThreshold = threshold;
+    }
+
+    // Record executed instructions into a trace (null or a Tracer at level OFF stops tracing)
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer == null || tracer.level == Tracer.Level.OFF ? null : tracer;
+    }
+
+    // Number of instructions executed so far (interpreted and compiled)
+    public long instructionCount() {
+        return instret;
+    }
+
+    // Stop run() once instructionCount() reaches limit (0 = no limit); run() can be called again to go on
+    public void setInstructionLimit(long limit) {
+        instructionLimit = limit;
+    }
+
+    // Stop run() after it has taken about this long (null or zero = no timeout)
+    public void setTimeout(Duration timeout) {
+        timeoutNanos = timeout == null ? 0 : timeout.toNanos();
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    // Why the last run() stopped, and what happened for faults and invalid instructions (else null)
+    public StopReason stopReason() {
+        return stopReason;
+    }
+
+    public String stopMessage() {
+        return stopMessage;
+    }
+
+    // Count executions per PC, instruction mix and branch outcomes (null turns profiling off).
+    // Like tracing, profiling needs every instruction and turns compilation off. It may be attached
+    // before or after load(); its counters are cleared whenever another program is loaded or restored.
+    public void setProfiler(GuestProfiler profiler) {
+        this.profiler = profiler;
+        if (profiler != null) {
+            profiler.reset(textSlots());
+        }
+    }
+
+    // Time execution on a five-stage pipeline model (null turns timing off). The model only observes
+    // executed instructions, so results are unchanged; it needs every instruction and turns compilation off.
+    // Like the profiler, it may be attached before load() and is reset when another program is loaded.
+    public void setPipelineModel(PipelineModel pipeline) {
+        this.pipeline = pipeline;
+        if (pipeline != null) {
+            pipeline.reset(textSlots());
+        }
+    }
+
+    // Simulate instruction and data caches on every fetch, load and store (null turns it off).
+    // Memory contents are unaffected; like profiling, it turns compilation off. It may be attached
+    // before load() and is reset when another program is loaded.
+    public void setCacheSimulator(CacheSimulator caches) {
+        this.caches = caches;
+        if (caches != null) {
+            caches.reset(textSlots());
+        }
+    }
+
+    // Main execution loop: process instructions one by one
+    public void run() {
+        stopReason = null;
+        stopMessage = null;
+        exitCode = 0;
+        boolean tiered = jitThreshold > 0 && tracer == null && profiler == null && pipeline == null && caches == null;
+        long deadline = System.nanoTime() + timeoutNanos;
+        try {
+            while (true) {
+                long sliceEnd = instret + SLICE;
+                if (instructionLimit > 0) {
+                    if (instret >= instructionLimit) {
+                        stopReason = StopReason.INSTRUCTION_LIMIT;
+                        break;
+                    }
+                    sliceEnd = Math.min(sliceEnd, instructionLimit);
+                }
+                if (tiered ? runTiered(sliceEnd) : runInterpreted(sliceEnd)) break;
+                if (timeoutNanos > 0 && System.nanoTime() - deadline >= 0) {
+                    stopReason = StopReason.TIMEOUT;
+                    break;
+                }
+            }
+        } catch (GuestMemory.Fault e) {
+            // Stop on a bad load, store or fetch; PC is past the faulting instruction
+            stopReason = StopReason.MEMORY_FAULT;
+            stopMessage = e.getMessage();
+            if (verbose) System.out.println("Memory fault at PC=0x" + Integer.toHexString(faultPc) + ": " + e.getMessage());
+        } finally {
+            if (io != null) io.flush();
+        }
+        if (verbose && (stopReason == StopReason.INSTRUCTION_LIMIT || stopReason == StopReason.TIMEOUT)) {
+            System.out.println("Stopped (" + stopReason + ") at PC=0x" + Integer.toHexString(pc) + " after " + instret + " instructions");
+        }
+    }
+
+    // Interpret until the program stops (true) or instret reaches sliceEnd (false)
+    private boolean runInterpreted(long sliceEnd) {
+        while (instret < sliceEnd) {
+            if (step() < 0) return true;
+        }
+        return false;
+    }
+
+    // Tiered execution loop: interpret, count entries to each basic block, and switch to the
+    // compiled version of a block once it is hot. A block starts after any branch or jump.
+    private boolean runTiered(long sliceEnd) {
+        boolean blockStart = true;
+        while (instret < sliceEnd) {
+            if (blockStart && runCompiled(sliceEnd)) continue;
+            int op = step();
+            if (op < 0) return true;
+            blockStart = endsBlock(op) || op == OP_ECALL; // Compiled blocks stop before an ecall
+        }
+        return false;
+    }
+
+    // Count an entry to the block at PC and run its compiled version if it has one (compiling it
+    // once hot). Blocks run whole, so one that would pass sliceEnd is left to the interpreter.
+    private boolean runCompiled(long sliceEnd) {
+        if (pc < TEXT_BASE || pc >= textEnd || (pc & 3) != 0) return false;
+        int slot = (pc - TEXT_BASE) >> 2;
+        BlockCompiler.Block block = compiledBlocks[slot];
+        if (block == null && ++blockCounts[slot] == jitThreshold) {
+            block = compiledBlocks[slot] = BlockCompiler.compile(this, slot, blockEnds);
+        }
+        if (block == null || instret + (blockEnds[slot] - slot) > sliceEnd) return false;
+        try {
+            pc = block.run(registers, this);
+        } catch (GuestMemory.Fault e) {
+            // The block wrote back its registers and left at the faulting instruction
+            faultPc = leftBlockAt;
+            pc = faultPc + 4;
+            throw e;
+        } finally {
+            int end = blockEnds[slot];
+            if (leftBlockAt != 0) { // Left early by leaveBlock
+                end = (leftBlockAt - TEXT_BASE) >> 2;
+                leftBlockAt = 0;
+            }
+            instret += end - slot;
+        }
+        return true;
+    }
+
+    // Called by BlockCompiler when the block at a .text slot cannot be defined
+    void blockCompileFailed(int slot, Exception e) {
+        compileFailures++;
+        lastCompileFailure = "0x" + Integer.toHexString(TEXT_BASE + (slot << 2)) + ": " + e;
+    }
+
+    // Hot blocks that could not be compiled and run interpreted instead, and the last reason (or null)
+    public long compileFailures() {
+        return compileFailures;
+    }
+
+    public String lastCompileFailure() {
+        return lastCompileFailure;
+    }
+
+    // Called by a compiled block that stops before running all of its instructions: after a store
+    // into its own later instructions (with the next PC, so the interpreter carries on with the new
+    // code) or at a load or store that faults (with that instruction's PC, before rethrowing).
+    // Instructions before pc count as run. Returns pc.
+    int leaveBlock(int pc) {
+        leftBlockAt = pc;
+        return pc;
+    }
+
+    // Run one basic block, as run() would: compiled (with a JIT threshold set) or interpreted up to
+    // and including the next branch, jump or ecall. Returns false once the program has stopped
+    // (see stopReason()). Used by LockstepVerifier to compare state at block boundaries.
+    boolean runBlock() {
+        stopReason = null;
+        stopMessage = null;
+        boolean tiered = jitThreshold > 0 && tracer == null && profiler == null && pipeline == null && caches == null;
+        try {
+            if (tiered && runCompiled(Long.MAX_VALUE)) return true;
+            while (true) {
+                int op = step();
+                if (op < 0) return false;
+                if (endsBlock(op) || op == OP_ECALL) return true;
+            }
+        } catch (GuestMemory.Fault e) {
+            stopReason = StopReason.MEMORY_FAULT;
+            stopMessage = e.getMessage();
+            return false;
+        }
+    }
+
+    // Execute one instruction through all five stages.
+    // Returns the opcode ID that ran, or -1 when the program stops.
+    private int step() {
+        int instrPc = pc;
+        if (caches != null) {
+            caches.fetch(instrPc);
+        }
+        int slot;
+        try {
+            slot = fetchDecoded();            // Stages 1-2: Fetch and decode (cached per PC)
+        } catch (GuestMemory.Fault e) {
+            faultPc = instrPc;
+            throw e;
+        }
+        int fields = decodedFields[slot];
+        int op = fields & 0xFF;
+        int rd = (fields >> 8) & 0x1F;
+        int rs1 = (fields >> 13) & 0x1F;
+        int rs2 = (fields >> 18) & 0x1F;
+        int imm = decodedImm[slot];
+        if (op == OP_INVALID) {
+            stopReason = StopReason.INVALID_INSTRUCTION;
+            stopMessage = "Invalid instruction at PC=0x" + Integer.toHexString(instrPc) + ": 0x" + Integer.toHexString(decodedRaw[slot]);
+            if (verbose) System.out.println(stopMessage);
+            return -1; // Stop on invalid instruction
+        }
+        try {
+            HANDLERS[op].execute(this, rd, rs1, rs2, imm); // Stages 3-5: Execute, memory access, write-back
+        } catch (GuestMemory.Fault e) {
+            faultPc = instrPc;
+            throw e;
+        }
+        instret++;
+        if (tracer != null) {
+            tracer.record(instrPc, decodedRaw[slot], rd, registers[rd]); // Show what happened
+        }
+        if (profiler != null) {
+            profiler.record(instrPc, op, pc);
+        }
+        if (pipeline != null) {
+            pipeline.record(instrPc, op, rd, rs1, rs2, imm, pc);
+        }
+        // Exit condition: jal x0, 0
+        if (op == OP_JAL && rd == 0 && imm == 0) {
+            stopReason = StopReason.EXIT;
+            if (verbose) System.out.println("Program exited at PC=0x" + Integer.toHexString(instrPc));
+            return -1;
+        }
+        if (op == OP_ECALL && stopReason == StopReason.EXIT) {
+            if (io != null) io.flush(); // Guest output first
+            if (verbose) System.out.println("Program exited with code " + exitCode + " at PC=0x" + Integer.toHexString(instrPc));
+            return -1;
+        }
+        return op;
+    }
+
+    // Stage 3 of ecall: run the system call numbered in x17
+    private void ecall() {
+        int a0 = registers[10], a1 = registers[11], a2 = registers[12];
+        switch (registers[17]) {
+            case SYS_READ:
+                int n = hostIO().read(memory, a0, a1, a2);
+                if (n > 0 && storeListener != null) storeListener.stored(a1, n);
+                if (caches != null) caches.dataRange(pc - 4, a1, n, true);
+                writeBack(10, n);
+                break;
+            case SYS_WRITE:
+                int written = hostIO().write(memory, a0, a1, a2);
+                if (caches != null) caches.dataRange(pc - 4, a1, written, false);
+                writeBack(10, written);
+                break;
+            case SYS_EXIT:
+                exitCode = a0;
+                stopReason = StopReason.EXIT;
+                break;
+            case SYS_COUNTER:
+                long value = a0 == 0 ? instret : a0 == 1 && pipeline != null ? pipeline.cycles() : -1;
+                writeBack(10, (int) value);
+                writeBack(11, (int) (value >>> 32));
+                break;
+            default:
+                writeBack(10, -ENOSYS);
+        }
+    }
+
+    // Stages 1-2: Return the decode-cache slot for the instruction at PC and advance PC.
+    // Instructions inside .text are fetched and decoded only the first time they run. A misaligned
+    // PC (a branch offset of 2 mod 4) takes the slow path so fetch() faults on it.
+    private int fetchDecoded() {
+        int slot;
+        if (pc >= TEXT_BASE && pc < textEnd && (pc & 3) == 0) {
+            slot = (pc - TEXT_BASE) >> 2;
+            if (decodedFields[slot] == OP_UNDECODED) {
+                decode(fetch(), slot);
+                return slot; // fetch() already moved PC
+            }
+        } else {
+            slot = decodedFields.length - 1; // Outside .text (or misaligned): decode every time into the scratch slot
+            decode(fetch(), slot);
+            return slot;
+        }
+        pc += 4;
+        return slot;
+    }
+
+    // Stage 1: Fetch the next 32-bit instruction from memory
+    private int fetch() {
+        pc += 4; // Move PC to next instruction (4 bytes = 32 bits)
+        return memory.fetchWord(pc - 4); // Read 4 bytes at the old PC (little-endian)
+    }
+
+    // Drop cached decodes covering [addr, addr + size) after a store into .text
+    // GuestMemory calls this for every store to an executable page, so self-modifying code is re-decoded.
+    private void invalidateDecoded(int addr, int size) {
+        if (addr + size <= TEXT_BASE || addr >= textEnd) return;
+        int first = Math.max(addr, TEXT_BASE) - TEXT_BASE >> 2;
+        int last = Math.min(addr + size, textEnd) - 1 - TEXT_BASE >> 2;
+        for (int slot = first; slot <= last; slot++) {
+            decodedFields[slot] = OP_UNDECODED;
+        }
+        // Compiled blocks overlapping the store are dropped; one already running leaves at the store if
+        // it overwrote its own later instructions (see BlockCompiler.emitCodeWriteExit)
+        for (int start = Math.max(0, first - BlockCompiler.MAX_BLOCK_LENGTH + 1); start <= last; start++) {
+            if (compiledBlocks[start] != null && blockEnds[start] > first) {
+                compiledBlocks[start] = null;
+                blockCounts[start] = 0;
+            }
+        }
+    }
+
+    // Number of decode-cache slots covering .text
+    int textSlots() {
+        return decodedFields.length - 1;
+    }
+
+    // Decoded fields for a .text slot, decoding it first if needed (used by the block compiler)
+    int decodedAt(int slot) {
+        if (decodedFields[slot] == OP_UNDECODED) {
+            decode(memory.fetchWord(TEXT_BASE + (slot << 2)), slot);
+        }
+        return decodedFields[slot];
+    }
+
+    // Stage 2: Decode the 32-bit instruction into its parts and store them in a cache slot
+    private void decode(int instr, int slot) {
+        int fields = decodeFields(instr);
+        decodedFields[slot] = fields;
+        decodedImm[slot] = decodeImmediate(instr, fields & 0xFF);
+        decodedRaw[slot] = instr;
+    }
+
+    // Decode the opcode ID and register fields of an instruction, packed as in the decode cache.
+    // One table lookup picks the handler; its mask/match then rejects unused encodings.
+    static int decodeFields(int instr) {
+        int key = ((instr >> 2) & 0x1F) | (instr & 0x7000) >> 7 | ((instr >> 30) & 0x1) << 8;
+        int op = DISPATCH[key];
+        Instruction handler = HANDLERS[op];
+        if (op == OP_UNDECODED || (instr & handler.mask) != handler.match) {
+            return OP_INVALID; // Unknown opcode = invalid instruction
+        }
+        int rd = (instr >> 7) & 0x1F;       // Bits 11-7: Destination register
+        int rs1 = (instr >> 15) & 0x1F;     // Bits 19-15: Source register 1
+        int rs2 = (instr >> 20) & 0x1F;     // Bits 24-20: Source register 2
+
+        switch (handler.format) {
+            case FMT_I: // I-type: no rs2
+                rs2 = 0;
+                break;
+            case FMT_S: // S-type and SB-type: bits 11-7 hold immediate bits, not rd
+            case FMT_SB:
+                rd = 0;
+                break;
+            case FMT_UJ: // UJ-type: only rd
+                rs1 = 0;
+                rs2 = 0;
+                break;
+        }
+        return op | (rd << 8) | (rs1 << 13) | (rs2 << 18);
+    }
+
+    // Decode the sign-extended immediate of an instruction with the given opcode ID
+    static int decodeImmediate(int instr, int op) {
+        switch (HANDLERS[op].format) {
+            case FMT_I: // I-type: Bits 31-20 are the immediate (sign-extended by the shift)
+                return instr >> 20;
+
+            case FMT_S: // S-type: imm[11:5] in bits 31-25, imm[4:0] in bits 11-7
+                return ((instr >> 25) << 5) | ((instr >> 7) & 0x1F);
+
+            case FMT_SB: // SB-type immediate: [12|10:5|4:1|11] (bits rearranged)
+                return ((instr >> 31) << 12) | (((instr >> 25) & 0x3F) << 5) |
+                       (((instr >> 8) & 0xF) << 1) | (((instr >> 7) & 0x1) << 11);
+
+            case FMT_UJ: // UJ-type immediate: [20|10:1|11|19:12]
+                return ((instr >> 31) << 20) | (((instr >> 21) & 0x3FF) << 1) |
+                       (((instr >> 20) & 0x1) << 11) | (((instr >> 12) & 0xFF) << 12);
+
+            default: // R-type and invalid instructions have no immediate
+                return 0;
+        }
+    }
+
+    // Mnemonic for an opcode ID
+    static String opName(int op) {
+        return HANDLERS[op].name;
+    }
+
+    // True for branches and jumps, which end a basic block
+    static boolean endsBlock(int op) {
+        return HANDLERS[op].format >= FMT_SB;
+    }
+
+    // Number of opcode IDs; valid instructions use OP_ADD .. opCount() - 1
+    static int opCount() {
+        return HANDLERS.length;
+    }
+
+    // A valid encoding of an opcode ID: the handler's fixed bits, with every other bit from otherBits
+    static int encode(int op, int otherBits) {
+        Instruction handler = HANDLERS[op];
+        return (otherBits & ~handler.mask) | handler.match;
+    }
+
+    // Stage 4: Load a 32-bit word from memory
+    int loadWord(int addr) {
+        if (caches != null) {
+            caches.data(pc - 4, addr, false);
+        }
+        return memory.loadWord(addr);
+    }
+
+    // Stage 4: Store a 32-bit word to memory (stores into code are reported to invalidateDecoded)
+    void storeWord(int addr, int value) {
+        if (caches != null) {
+            caches.data(pc - 4, addr, true);
+        }
+        memory.storeWord(addr, value);
+        if (storeListener != null) {
+            storeListener.stored(addr, 4);
+        }
+    }
+
+    // Stage 5: Write results back to registers (x0 is always 0)
+    private void writeBack(int rd, int result) {
+        if (rd != 0) {
+            registers[rd] = result;
+        }
+    }
+
+    // Handler for one instruction: how to recognise it and its specialized execute path.
+    // Branch and jump offsets are relative to the next instruction, as the assembler encodes them.
+    private abstract static class Instruction {
+        final String name; // Mnemonic (e.g., "add", "lw")
+        final int format;  // One of the FMT_ constants
+        final int mask;    // Bits that must equal match for a valid encoding
+        final int match;
+
+        Instruction(String name, int format, int opcode, int funct3, int funct7) {
+            this.name = name;
+            this.format = format;
+            int mask = 0x7F, match = opcode;
+            if (funct3 >= 0) { mask |= 0x7 << 12; match |= funct3 << 12; }
+            if (funct7 >= 0) { mask |= 0x7F << 25; match |= funct7 << 25; }
+            this.mask = mask;
+            this.match = match;
+        }
+
+        // An instruction with exactly one encoding (every bit fixed)
+        Instruction(String name, int format, int encoding) {
+            this.name = name;
+            this.format = format;
+            this.mask = -1;
+            this.match = encoding;
+        }
+
+        // Stages 3-5 for this instruction; PC already points to the next instruction
+        abstract void execute(RiscVInterpreter cpu, int rd, int rs1, int rs2, int imm);
+    }
+
+    // Register a handler under its opcode ID and fill every dispatch key its encoding can produce
+    private static void register(int op, Instruction handler) {
+        HANDLERS[op] = handler;
+        for (int key = 0; key < DISPATCH.length; key++) {
+            int bits = 0x3 | (key & 0x1F) << 2 | (key >> 5 & 0x7) << 12 | (key >> 8) << 30;
+            int mask = handler.mask & (0x7F | 0x7 << 12 | 1 << 30);
+            if ((bits & mask) == (handler.match & mask)) {
+                DISPATCH[key] = (byte) op;
+            }
+        }
+    }
+
+    static {
+        HANDLERS[OP_UNDECODED] = new Instruction("?", FMT_R, 0, -1, -1) {
+            void execute(RiscVInterpreter cpu, int rd, int rs1, int rs2, int imm) { }
+        };
+        HANDLERS[OP_INVALID] = new Instruction("invalid", FMT_R, 0, -1, -1) {
+            void execute(RiscVInterpreter cpu, int rd, int rs1, int rs2, int imm) { }
+        };
+        register(OP_ADD, new Instruction("add", FMT_R, 0x33, 0x0, 0x00) {
+            void execute(RiscVInterpreter cpu, int rd, int rs1, int rs2, int imm) {
+                cpu.writeBack(rd, cpu.registers[rs1] + cpu.registers[rs2]);
+            }
+        });
+        register(OP_SUB, new Instruction("sub", FMT_R, 0x33, 0x0, 0x20) {
+            void execute(RiscVInterpreter cpu, int rd, int rs1, int rs2, int imm) {
+                cpu.writeBack(rd, cpu.registers[rs1] - cpu.registers[rs2]);
+            }
+        });
+        register(OP_ADDI, new Instruction("addi", FMT_I, 0x13, 0x0, -1) {
+            void execute(RiscVInterpreter cpu, int rd, int rs1, int rs2, int imm) {
+                cpu.writeBack(rd, cpu.registers[rs1] + imm);
+            }
+        });
+        register(OP_LW, new Instruction("lw", FMT_I, 0x03, 0x2, -1) {
+            void execute(RiscVInterpreter cpu, int rd, int rs1, int rs2, int imm) {
+                cpu.writeBack(rd, cpu.loadWord(cpu.registers[rs1] + imm));
+            }
+        });
+        register(OP_SW, new Instruction("sw", FMT_S, 0x23, 0x2, -1) {
+            void execute(RiscVInterpreter cpu, int rd, int rs1, int rs2, int imm) {
+                cpu.storeWord(cpu.registers[rs1] + imm, cpu.registers[rs2]);
+            }
+        });
+        register(OP_BEQ, new Instruction("beq", FMT_SB, 0x63, 0x0, -1) {
+            void execute(RiscVInterpreter cpu, int rd, int rs1, int rs2, int imm) {
+                if (cpu.registers[rs1] == cpu.registers[rs2]) cpu.pc += imm;
+            }
+        });
+        register(OP_BNE, new Instruction("bne", FMT_SB, 0x63, 0x1, -1) {
+            void execute(RiscVInterpreter cpu, int rd, int rs1, int rs2, int imm) {
+                if (cpu.registers[rs1] != cpu.registers[rs2]) cpu.pc += imm;
+            }
+        });
+        register(OP_BLT, new Instruction("blt", FMT_SB, 0x63, 0x4, -1) {
+            void execute(RiscVInterpreter cpu, int rd, int rs1, int rs2, int imm) {
+                if (cpu.registers[rs1] < cpu.registers[rs2]) cpu.pc += imm;
+            }
+        });
+        register(OP_JAL, new Instruction("jal", FMT_UJ, 0x6F, -1, -1) {
+            void execute(RiscVInterpreter cpu, int rd, int rs1, int rs2, int imm) {
+                int nextPc = cpu.pc; // PC already incremented in fetch
+                cpu.pc += imm;
+                cpu.writeBack(rd, nextPc); // Return address for rd
+            }
+        });
+        register(OP_ECALL, new Instruction("ecall", FMT_I, 0x00000073) {
+            void execute(RiscVInterpreter cpu, int rd, int rs1, int rs2, int imm) {
+                cpu.ecall();
+            }
+        });
+    }
+
+    private void dumpMemory(int start, int end) {
+        System.out.printf("Memory dump from 0x%08x to 0x%08x:\n", start, end);
+        for (int i = start; i < end; i += 4) {
+            System.out.printf("0x%08x: %02x%02x%02x%02x\n", i,
+            memory.loadByte(i + 3) & 0xFF, memory.loadByte(i + 2) & 0xFF, memory.loadByte(i + 1) & 0xFF, memory.loadByte(i) & 0xFF);
+        }
+    }
+
+    private void dumpRegisters() {
+        System.out.println("Registers (values in hex):");
+        for (int i = 0; i < 32; i++) {
+            if (i < 10) System.out.print(" ");
+            System.out.printf("x%d: %08x   ", i, registers[i]);
+            if ((i + 1) % 4 == 0) 
+                System.out.println();
+        }
+    }
+
+    // Entry point: Load ELF and run the interpreter
+    // TODO: Use command line arguments
+    // java RiscVInterpreter [program.elf] [-trace file]: runs arithmetic.elf by default; -trace writes
+    // a full execution trace (decode with java TraceDecoder file)
+    public static void main(String[] args) throws Exception {
+        String elf = "arithmetic.elf";
+        String trace = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-trace") && i + 1 < args.length) {
+                trace = args[++i];
+            } else if (args[i].startsWith("-")) {
+                System.err.println("Usage: java RiscVInterpreter [program.elf] [-trace file]");
+                System.exit(1);
+            } else {
+                elf = args[i];
+            }
+        }
+        RiscVInterpreter rv = new RiscVInterpreter();
+        rv.loadElf(elf);
+        if (trace == null) {
+            rv.run();
+        } else {
+            try (Tracer tracer = new Tracer(Paths.get(trace), Tracer.Level.FULL, 1)) {
+                rv.setTracer(tracer);
+                rv.run();
+            }
+        }
+        rv.dumpMemory(0x0200, 0x0220);
+        rv.dumpRegisters();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,203 @@
+// Regression checks for the assembler and interpreter, runnable with nothing but the JDK:
+//
+//   javac *.java && java SelfTest [name filter]
+//
+// Every check builds its program in memory (or in a temporary file), runs it and compares the
+// outcome with what the engine must produce. Each prints ok or FAILED with the reason; the exit
+// code is 1 if any check failed.
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SelfTest {
+    // One check: throws (usually through expect) if the engine got it wrong
+    interface Check {
+        void run() throws Exception;
+    }
+
+    private static final long INSTRUCTION_LIMIT = 10_000_000;
+    private static final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) {
+        String filter = args.length > 0 ? args[0] : "";
+
+        check(filter, "relaxedFarBranches", SelfTest::relaxedFarBranches);
+        check(filter, "compiledBlockFault", SelfTest::compiledBlockFault);
+        check(filter, "misalignedBranchIntoText", SelfTest::misalignedBranchIntoText);
+        check(filter, "selfModifyingStore", SelfTest::selfModifyingStore);
+        check(filter, "mappedElfTruncated", SelfTest::mappedElfTruncated);
+
+        System.out.println(failures.isEmpty() ? "All checks passed" : failures.size() + " checks failed: " + failures);
+        if (!failures.isEmpty()) System.exit(1);
+    }
+
+    private static void check(String filter, String name, Check check) {
+        if (!name.contains(filter)) return;
+        try {
+            check.run();
+            System.out.println("ok      " + name);
+        } catch (Throwable e) {
+            System.out.println("FAILED  " + name + ": " + e);
+            failures.add(name);
+        }
+    }
+
+    private static void expect(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    // Fresh interpreter on image with compiled blocks from the first run (0 = interpreter only). The
+    // instruction limit keeps a check from hanging if the engine loops where it should not.
+    private static RiscVInterpreter run(ProgramImage image, int jitThreshold) {
+        RiscVInterpreter rv = new RiscVInterpreter();
+        rv.setVerbose(false);
+        rv.setInstructionLimit(INSTRUCTION_LIMIT);
+        rv.load(image);
+        rv.setJitThreshold(jitThreshold);
+        rv.run();
+        return rv;
+    }
+
+    // A loop whose branches span more than 4 KB of code in both directions: rejected without the
+    // optimizer, relaxed with it, and the relaxed program runs the same on every engine
+    private static void relaxedFarBranches() throws Exception {
+        StringBuilder source = new StringBuilder(".text\n    addi x6, x0, 3\nloop:\n    beq x5, x6, done\n    addi x5, x5, 1\n");
+        for (int i = 0; i < 1100; i++) source.append("    add x7, x7, x5\n");
+        source.append("    bne x5, x6, loop\n    beq x0, x0, loop\ndone:\n    jal x0, 0\n");
+
+        try {
+            new RiscVAssembler().assembleSource(source);
+            throw new AssertionError("far branches assembled without the optimizer");
+        } catch (IllegalArgumentException expected) {
+            expect(expected.getMessage().contains("out of range"), "unexpected error: " + expected.getMessage());
+        }
+
+        RiscVAssembler assembler = new RiscVAssembler();
+        assembler.setOptimize(true);
+        ProgramImage image = assembler.assembleSource(source);
+        expect(image.textSize() / 4 > 1106, "no branch was relaxed (" + image.textSize() / 4 + " instructions)");
+        for (int jit : new int[] {0, 1}) {
+            RiscVInterpreter rv = run(image, jit);
+            expect(rv.stopReason() == RiscVInterpreter.StopReason.EXIT, "jit " + jit + ": stopped with " + rv.stopReason());
+            expect(rv.register(5) == 3 && rv.register(7) == 1100 * (1 + 2 + 3),
+                    "jit " + jit + ": x5=" + rv.register(5) + " x7=" + rv.register(7));
+        }
+        LockstepVerifier.Result result = new LockstepVerifier().verify(image);
+        expect(!result.diverged(), result.divergence);
+    }
+
+    // Same stop reason, PC, instruction count and registers as a run with the interpreter only
+    private static void expectSameState(RiscVInterpreter expected, RiscVInterpreter actual, String what) {
+        expect(actual.stopReason() == expected.stopReason(), what + ": stopped with " + actual.stopReason() + ", not " + expected.stopReason());
+        expect(actual.pc() == expected.pc(), what + ": pc 0x" + Integer.toHexString(actual.pc()) + ", not 0x" + Integer.toHexString(expected.pc()));
+        expect(actual.instructionCount() == expected.instructionCount(),
+                what + ": " + actual.instructionCount() + " instructions, not " + expected.instructionCount());
+        for (int i = 1; i < 32; i++) {
+            expect(actual.register(i) == expected.register(i), what + ": x" + i + "=" + actual.register(i) + ", not " + expected.register(i));
+        }
+    }
+
+    // A misaligned load late in a block: a compiled block must stop with the PC, instruction count
+    // and registers of the faulting instruction, not those of the block's start or end
+    private static void compiledBlockFault() throws Exception {
+        ProgramImage image = new RiscVAssembler().assembleSource(".text\n    addi x1, x0, 1\n    addi x2, x0, 2\n" +
+                "    addi x3, x0, 3\n    addi x4, x0, 4\n    addi x8, x0, 5\n    addi x9, x0, 6\n    addi x5, x0, 7\n" +
+                "    sw x5, 0x400(x0)\n    addi x6, x0, 9\n    lw x7, 0x402(x0)\n    addi x10, x0, 1\n    jal x0, 0\n");
+        RiscVInterpreter interpreted = run(image, 0);
+        expect(interpreted.stopReason() == RiscVInterpreter.StopReason.MEMORY_FAULT, "stopped with " + interpreted.stopReason());
+        expect(interpreted.pc() == 0x68 && interpreted.instructionCount() == 9,
+                "pc 0x" + Integer.toHexString(interpreted.pc()) + " after " + interpreted.instructionCount() + " instructions");
+        expect(interpreted.register(6) == 9 && interpreted.register(7) == 0 && interpreted.register(10) == 0,
+                "x6=" + interpreted.register(6) + " x7=" + interpreted.register(7) + " x10=" + interpreted.register(10));
+        for (int jit : new int[] {1, 2}) {
+            RiscVInterpreter compiled = run(image, jit);
+            expectSameState(interpreted, compiled, "jit " + jit);
+            expect(compiled.memory().loadWord(0x400) == 7, "jit " + jit + ": store before the fault lost");
+            LockstepVerifier verifier = new LockstepVerifier();
+            verifier.setJitThreshold(jit);
+            LockstepVerifier.Result result = verifier.verify(image);
+            expect(!result.diverged(), result.divergence);
+        }
+    }
+
+    // Run image interpreted and with compiled blocks; every engine, and the lockstep verifier against
+    // the reference interpreter, must reach the same state. Returns the interpreted run.
+    private static RiscVInterpreter runEverywhere(ProgramImage image) {
+        RiscVInterpreter interpreted = run(image, 0);
+        for (int jit : new int[] {1, 2}) {
+            expectSameState(interpreted, run(image, jit), "jit " + jit);
+        }
+        for (int jit : new int[] {0, 1, 2}) {
+            LockstepVerifier verifier = new LockstepVerifier();
+            verifier.setJitThreshold(jit);
+            LockstepVerifier.Result result = verifier.verify(image);
+            expect(!result.diverged(), "jit " + jit + ": " + result.divergence);
+        }
+        return interpreted;
+    }
+
+    // A branch 2 bytes past an instruction that has already run (so its slot is decoded, and
+    // compiled at low thresholds) must fault on the fetch instead of running that slot
+    private static void misalignedBranchIntoText() throws Exception {
+        ProgramImage image = new RiscVAssembler().assembleSource(".text\n    addi x5, x0, 2\ntarget:\n" +
+                "    addi x5, x5, -1\n    bne x5, x0, target\n    beq x0, x0, -10\n    jal x0, 0\n"); // -10: target + 2
+        RiscVInterpreter rv = runEverywhere(image);
+        expect(rv.stopReason() == RiscVInterpreter.StopReason.MEMORY_FAULT, "stopped with " + rv.stopReason());
+        expect(rv.pc() == 0x46 + 4 && rv.instructionCount() == 6 && rv.register(5) == 0,
+                "pc 0x" + Integer.toHexString(rv.pc()) + " after " + rv.instructionCount() + " instructions, x5=" + rv.register(5));
+    }
+
+    // Stores into .text replace instructions that already ran (the next time round a loop) and
+    // instructions later in the running block; neither may run stale code
+    private static void selfModifyingStore() throws Exception {
+        int replacement = RiscVAssembler.encode(RiscVAssembler.ADDI, 5, 5, 0, 100); // addi x5, x5, 100
+        ProgramImage image = new RiscVAssembler().assembleSource(".text\n    lw x8, 0x400(x0)\n    addi x7, x0, 2\n" +
+                "loop:\n    addi x5, x5, 1\n    sw x8, 0x48(x0)\n    addi x7, x7, -1\n    bne x7, x0, loop\n" +
+                "    addi x7, x0, 2\nagain:\n    sw x8, 0x64(x0)\n    addi x6, x6, 1\n    addi x6, x6, 1\n" +
+                "    addi x7, x7, -1\n    bne x7, x0, again\n    jal x0, 0\n" +
+                ".data\n    .word " + replacement + "\n");
+        RiscVInterpreter rv = runEverywhere(image);
+        expect(rv.stopReason() == RiscVInterpreter.StopReason.EXIT, "stopped with " + rv.stopReason());
+        // loop adds 1 then 100; again's first store lands ahead of it in the same block, so both of
+        // its rounds add 100 to x5 and only 1 to x6
+        expect(rv.register(5) == 1 + 100 + 2 * 100, "x5=" + rv.register(5));
+        expect(rv.register(6) == 2, "x6=" + rv.register(6));
+    }
+
+    // A mapped image must not depend on its file once map() returns: truncating the file, or writing
+    // the image back over it, leaves the image intact. A file cut short is rejected, not mapped.
+    private static void mappedElfTruncated() throws Exception {
+        ProgramImage assembled = new RiscVAssembler().assembleSource(".text\n    addi x6, x0, 4\nloop:\n" +
+                "    lw x7, 0x400(x5)\n    add x8, x8, x7\n    addi x5, x5, 4\n    addi x6, x6, -1\n" +
+                "    bne x6, x0, loop\n    jal x0, 0\n.data\n    .word 1\n    .word 2\n    .word 3\n    .word 4\n");
+        Path file = Files.createTempFile("selftest", ".elf");
+        try {
+            assembled.writeElf(file);
+            byte[] original = Files.readAllBytes(file);
+            ProgramImage image = ProgramImage.map(file.toString());
+
+            Files.write(file, new byte[0]);
+            expect(image.textWord(0) == assembled.textWord(0) && image.dataByte(12) == 4, "image changed with its file");
+            RiscVInterpreter rv = run(image, 0);
+            expect(rv.stopReason() == RiscVInterpreter.StopReason.EXIT && rv.register(8) == 10,
+                    "truncated file: stopped with " + rv.stopReason() + ", x8=" + rv.register(8));
+
+            image.writeElf(file);
+            expect(Arrays.equals(Files.readAllBytes(file), original), "image written over its own file differs");
+
+            Files.write(file, Arrays.copyOf(original, original.length - 4));
+            try {
+                ProgramImage.map(file.toString());
+                throw new AssertionError("a file cut short was mapped");
+            } catch (IOException expected) {
+                expect(expected.getMessage().startsWith("Not a valid ELF file"), "unexpected error: " + expected.getMessage());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
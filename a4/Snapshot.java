@@ -0,0 +1,142 @@
+// A saved interpreter state: PC, registers, instruction count and guest memory (see
+// RiscVInterpreter.snapshot/restore/fork). The memory shares its pages copy-on-write with the
+// interpreter it came from and with every interpreter restored from it, so a snapshot costs a
+// page-table copy rather than a memory copy.
+//
+// Snapshots can be saved in a compact file that stores each distinct page once and leaves out
+// all-zero pages. Layout (little-endian): "RVSN", version, PC, instruction count (8 bytes),
+// .text size, x0..x31, page count, distinct page count; then per page its number, permissions and
+// the index of its contents (-1 = zeros); then the distinct page contents, 4 KB each.
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class Snapshot {
+    static final int MAGIC = 0x4E535652; // "RVSN"
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 3 * 4 + 8 + 4 + 32 * 4 + 2 * 4;
+    private static final int ENTRY_SIZE = 12;
+
+    final int pc;
+    final long instret;
+    final int textSize;          // Size of the loaded .text section, for the decode caches
+    final int[] registers;
+    final GuestMemory memory;    // Never written: its pages stay shared
+    final ProgramImage image;    // Program it was taken from (null = unknown, e.g. read from a file)
+
+    Snapshot(int pc, long instret, int textSize, int[] registers, GuestMemory memory, ProgramImage image) {
+        this.pc = pc;
+        this.instret = instret;
+        this.textSize = textSize;
+        this.registers = registers;
+        this.memory = memory;
+        this.image = image;
+    }
+
+    public int pc() {
+        return pc;
+    }
+
+    public long instructionCount() {
+        return instret;
+    }
+
+    // Value of register x<index>
+    public int register(int index) {
+        return registers[index];
+    }
+
+    // Write the snapshot to file: header, page table and distinct pages in one gathering write
+    public void write(Path file) throws IOException {
+        List<ByteBuffer> contents = new ArrayList<>();
+        Map<ByteBuffer, Integer> distinct = new HashMap<>(); // Page contents -> index in contents
+        ByteBuffer table = ByteBuffer.allocate(memory.pageCount() * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        memory.forEachPage((number, perms, data) -> {
+            int index = -1;
+            if (!GuestMemory.isZero(data)) {
+                index = distinct.computeIfAbsent(data, d -> {
+                    contents.add(d);
+                    return contents.size() - 1;
+                });
+            }
+            table.putInt(number).putInt(perms).putInt(index);
+        });
+        table.flip();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(pc).putLong(instret).putInt(textSize);
+        for (int r : registers) header.putInt(r);
+        header.putInt(memory.pageCount()).putInt(contents.size()).flip();
+
+        ByteBuffer[] buffers = new ByteBuffer[2 + contents.size()];
+        buffers[0] = header;
+        buffers[1] = table;
+        for (int i = 0; i < contents.size(); i++) buffers[2 + i] = contents.get(i);
+        long remaining = HEADER_SIZE + table.remaining() + (long) contents.size() * GuestMemory.PAGE_SIZE;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+    }
+
+    // Read a snapshot file. The file is mapped once and each distinct page is copied out of the
+    // mapping once, then shared by every page that uses it; no page keeps the mapping, so writing a
+    // new snapshot over the same file (write truncates it) cannot fault a restored interpreter.
+    public static Snapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int pc = in.getInt();
+            long instret = in.getLong();
+            int textSize = in.getInt();
+            int[] registers = new int[32];
+            for (int i = 0; i < registers.length; i++) registers[i] = in.getInt();
+            int pages = in.getInt();
+            int distinct = in.getInt();
+            long contentsOffset = HEADER_SIZE + (long) pages * ENTRY_SIZE;
+            if (pages < 0 || distinct < 0 || contentsOffset + (long) distinct * GuestMemory.PAGE_SIZE != size) {
+                throw new IOException("Corrupt snapshot file: " + file + " has " + size + " bytes");
+            }
+
+            GuestMemory memory = new GuestMemory();
+            ByteBuffer[] copies = new ByteBuffer[distinct]; // Heap copies of the distinct pages, made on first use
+            for (int i = 0; i < pages; i++) {
+                int number = in.getInt(), perms = in.getInt(), index = in.getInt();
+                if (index < -1 || index >= distinct) {
+                    throw new IOException("Corrupt snapshot file: page index " + index);
+                }
+                ByteBuffer data = null;
+                if (index >= 0) {
+                    if (copies[index] == null) {
+                        copies[index] = ByteBuffer.allocate(GuestMemory.PAGE_SIZE)
+                                .put(0, in, (int) contentsOffset + index * GuestMemory.PAGE_SIZE, GuestMemory.PAGE_SIZE)
+                                .asReadOnlyBuffer();
+                    }
+                    data = copies[index];
+                }
+                memory.mapShared(number << GuestMemory.PAGE_SHIFT, data, perms);
+            }
+            return new Snapshot(pc, instret, textSize, registers, memory, null);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+// Turns a binary trace written by Tracer back into the interpreter's text trace format
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class TraceDecoder {
+    // Decode every record of a trace file into out, one line per instruction
+    public static void decode(Path traceFile, Writer out) throws IOException {
+        try (FileChannel channel = FileChannel.open(traceFile, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(Tracer.RECORD_SIZE * 4096).order(ByteOrder.LITTLE_ENDIAN);
+            buf.limit(Tracer.HEADER_SIZE);
+            readFully(channel, buf);
+            buf.flip();
+            if (buf.remaining() < Tracer.HEADER_SIZE || buf.getInt() != Tracer.MAGIC) {
+                throw new IOException("Not a trace file: " + traceFile);
+            }
+            int version = buf.getInt();
+            int recordSize = buf.getInt();
+            if (version != Tracer.VERSION || recordSize != Tracer.RECORD_SIZE) {
+                throw new IOException("Unsupported trace version " + version + " (record size " + recordSize + ")");
+            }
+            buf.clear();
+
+            while (channel.read(buf) > 0 || buf.position() > 0) {
+                buf.flip();
+                if (buf.remaining() < Tracer.RECORD_SIZE) break; // Truncated final record
+                while (buf.remaining() >= Tracer.RECORD_SIZE) {
+                    int pc = buf.getInt(), instr = buf.getInt(), rd = buf.getInt(), value = buf.getInt();
+                    out.write(format(pc, instr, rd, value));
+                    out.write('\n');
+                }
+                buf.compact();
+            }
+        }
+    }
+
+    // One trace line: PC=0x.., Instr=.., rd=x.., rs1=x.., rs2=x.., imm=0x.., x<rd>=<value>
+    static String format(int pc, int instr, int rd, int value) {
+        int fields = RiscVInterpreter.decodeFields(instr);
+        int op = fields & 0xFF;
+        int rs1 = (fields >> 13) & 0x1F;
+        int rs2 = (fields >> 18) & 0x1F;
+        int imm = RiscVInterpreter.decodeImmediate(instr, op);
+        return String.format("PC=0x%x, Instr=%s, rd=x%d, rs1=x%d, rs2=x%d, imm=0x%x, x%d=%d",
+                pc, RiscVInterpreter.opName(op), rd, rs1, rs2, imm, rd, value);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining() && channel.read(buf) > 0) {
+        }
+    }
+
+    // Usage: java TraceDecoder <trace file>
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java TraceDecoder <trace file>");
+            System.exit(1);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        decode(Paths.get(args[0]), out);
+        out.flush();
+    }
+}
@@ -0,0 +1,149 @@
+// Binary execution trace: the interpreter drops fixed-size records into a lock-free ring buffer
+// and a background thread drains them to a file. TraceDecoder turns the file back into text.
+//
+// File layout (little-endian): "RVTR", version, record size, sample interval, then one record per
+// traced instruction: pc, raw instruction, rd, value of rd after the instruction.
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+public class Tracer implements AutoCloseable {
+    public enum Level {
+        OFF,     // No records
+        SAMPLED, // Every Nth instruction
+        FULL     // Every instruction
+    }
+
+    static final int MAGIC = 0x52545652; // "RVTR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 16;
+
+    private static final int RING_RECORDS = 1 << 16; // Must be a power of two
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(Tracer.class, "head", long.class);
+            TAIL = lookup.findVarHandle(Tracer.class, "tail", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    final Level level;
+    private final int sampleInterval;
+    private int countdown;
+
+    // Single-producer/single-consumer ring of 4-int records; head is written only by the
+    // interpreter thread and tail only by the writer thread
+    private final int[] ring = new int[RING_RECORDS * 4];
+    private volatile long head;
+    private volatile long tail;
+    private long cachedTail; // Producer's last view of tail
+
+    private final FileChannel channel;
+    private final Thread writer;
+    private volatile boolean closed;
+    private volatile Throwable failure; // Why the writer thread stopped early (null = it has not)
+
+    // Trace every instruction (FULL), every sampleInterval-th instruction (SAMPLED), or nothing (OFF)
+    public Tracer(Path file, Level level, int sampleInterval) throws IOException {
+        if (sampleInterval < 1) {
+            throw new IllegalArgumentException("Sample interval must be at least 1: " + sampleInterval);
+        }
+        this.level = level;
+        this.sampleInterval = level == Level.FULL ? 1 : sampleInterval;
+        this.countdown = this.sampleInterval;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(this.sampleInterval).flip();
+        while (header.hasRemaining()) channel.write(header);
+
+        writer = new Thread(this::drain, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Record one executed instruction (called by the interpreter thread only)
+    void record(int pc, int instr, int rd, int value) {
+        if (--countdown > 0) return;
+        countdown = sampleInterval;
+
+        long h = head;
+        if (h - cachedTail >= RING_RECORDS) {
+            // Ring full: wait for the writer (or give up on the record if the writer has stopped)
+            while (h - (cachedTail = (long) TAIL.getAcquire(this)) >= RING_RECORDS) {
+                if (failure != null || !writer.isAlive()) return;
+                Thread.onSpinWait();
+            }
+        }
+        int i = (int) (h & (RING_RECORDS - 1)) << 2;
+        ring[i] = pc;
+        ring[i + 1] = instr;
+        ring[i + 2] = rd;
+        ring[i + 3] = value;
+        HEAD.setRelease(this, h + 1); // Publish the record to the writer
+    }
+
+    // Number of records written to the trace so far
+    public long records() {
+        return head;
+    }
+
+    // Writer thread: copy published records into a direct buffer and write them out in batches
+    private void drain() {
+        ByteBuffer out = ByteBuffer.allocateDirect(RECORD_SIZE * 4096).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            while (true) {
+                long t = tail;
+                long h = (long) HEAD.getAcquire(this);
+                if (t == h) {
+                    if (closed && t == head) break;
+                    LockSupport.parkNanos(100_000);
+                    continue;
+                }
+                while (t < h && out.remaining() >= RECORD_SIZE) {
+                    int i = (int) (t & (RING_RECORDS - 1)) << 2;
+                    out.putInt(ring[i]).putInt(ring[i + 1]).putInt(ring[i + 2]).putInt(ring[i + 3]);
+                    t++;
+                }
+                TAIL.setRelease(this, t); // Free the slots for the producer
+                out.flip();
+                while (out.hasRemaining()) channel.write(out);
+                out.clear();
+            }
+        } catch (Throwable e) { // Anything, so record never waits on a writer that is gone
+            failure = e;
+        }
+    }
+
+    // Flush outstanding records and close the file
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw new IOException("Trace writer failed", failure);
+        }
+    }
+}
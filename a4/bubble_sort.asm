@@ -1,9 +1,10 @@
 .text
-    addi x5, x0, 0x0040
+    addi x5, x0, 0x0400
     addi x6, x0, 5
 outer_loop:
-    addi x7, x6, -1
-    beq x7, x0, done
+    addi x6, x6, -1
+    beq x6, x0, done
+    addi x7, x6, 0
     addi x8, x5, 0
 inner_loop:
     lw x9, 0(x8)